@@ -0,0 +1,86 @@
+package com.larvalabs.slidescreen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taveiranet.slidescreen.trac.Base64;
+
+/**
+ * The Base64 encoders and the intent encoding of the SlideScreen cursor.
+ *
+ * A Parcel needs Android, so the intents are stood in for by byte arrays of
+ * the size of a marshalled ACTION_VIEW intent with a ticket URL, passed
+ * through {@link PluginUtils#encode} as they are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    /**
+     * Roughly the marshalled size of an ACTION_VIEW intent to a ticket URL.
+     */
+    private static final int MARSHALLED_INTENT_SIZE = 220;
+
+    private static final PluginUtils.Marshaller<byte[]> AS_IS = new PluginUtils.Marshaller<byte[]>() {
+        public byte[] marshall(byte[] item) {
+            return item;
+        }
+    };
+
+    @Param({"1", "3"})
+    public int intents;
+
+    private byte[] data;
+    private String credentials;
+    private List<byte[]> marshalled;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        data = new byte[MARSHALLED_INTENT_SIZE];
+        random.nextBytes(data);
+        credentials = "smiff2:teste2";
+        marshalled = new ArrayList<byte[]>();
+        for (int i = 0; i < intents; i++) {
+            byte[] intent = new byte[MARSHALLED_INTENT_SIZE];
+            random.nextBytes(intent);
+            marshalled.add(intent);
+        }
+    }
+
+    @Benchmark
+    public String base64UtilEncode() {
+        return Base64Util.encodeBytes(data);
+    }
+
+    /**
+     * The Authorization header value of a session.
+     */
+    @Benchmark
+    public String base64EncodeCredentials() {
+        return Base64.encode(credentials, false);
+    }
+
+    @Benchmark
+    public String encodeIntents() {
+        return PluginUtils.encode(marshalled, AS_IS);
+    }
+}
@@ -0,0 +1,36 @@
+package com.taveiranet.slidescreen.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes the current thread allocates, with the HotSpot extension
+ * of the thread MXBean. Each measurement runs the code once to warm it up
+ * first, so class loading and JIT compilation are not counted.
+ */
+public final class Allocations {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Allocations() {
+    }
+
+    /**
+     * Returns the bytes allocated per call of the given code, averaged over
+     * the given number of calls.
+     */
+    public static double perCall(Runnable code, int calls) {
+        // Warm up past C2 compilation, so escape analysis applies as in
+        // steady state
+        for (int i = 0; i < Math.max(calls, 20000); i++) {
+            code.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < calls; i++) {
+            code.run();
+        }
+        long after = THREADS.getThreadAllocatedBytes(thread);
+        return (double) (after - before) / calls;
+    }
+}
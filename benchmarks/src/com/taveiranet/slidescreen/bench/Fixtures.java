@@ -0,0 +1,149 @@
+package com.taveiranet.slidescreen.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+
+/**
+ * Recorded Trac payloads the benchmarks run on: the system.multicall
+ * response that fetches tickets 1 to n, one ticket.get result per ticket,
+ * as Trac sends it.
+ *
+ * <p>The payloads of {@link #SIZES} tickets are kept in the fixtures
+ * directory, the system property "fixtures.dir". The 10 and 1000 ticket
+ * ones are checked in. Larger ones repeat the 1000 recorded tickets under
+ * new ids and are generated on first use, so they are always the same
+ * payload.
+ */
+public final class Fixtures {
+
+    /**
+     * The ticket counts there are fixtures of.
+     */
+    public static final int[] SIZES = { 10, 1000, 50000 };
+
+    /**
+     * The number of tickets of the largest recorded payload, which larger
+     * ones are generated from.
+     */
+    private static final int RECORDED = 1000;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns the system.multicall response body with the given number of
+     * tickets, generating it first if there is no fixture yet.
+     */
+    public static String multicallResponse(int tickets) throws Exception {
+        File file = fixture(tickets);
+        if (!file.exists()) {
+            generate(tickets, file);
+        }
+        return read(file);
+    }
+
+    private static File fixture(int tickets) {
+        return new File(System.getProperty("fixtures.dir", "fixtures"), "multicall-" + tickets + ".json");
+    }
+
+    /**
+     * Returns the system.multicall request that fetches the given number of
+     * tickets, the request {@link #multicallResponse} answers.
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONRPC2Request multicallRequest(int tickets) {
+        JSONArray signatures = new JSONArray();
+        for (long id = 1; id <= tickets; id++) {
+            JSONArray params = new JSONArray();
+            params.add(id);
+            JSONObject signature = new JSONObject();
+            signature.put("method", "ticket.get");
+            signature.put("params", params);
+            signatures.add(signature);
+        }
+        JSONArray params = new JSONArray();
+        params.add(signatures);
+        return new JSONRPC2Request("system.multicall", params, 1L);
+    }
+
+    /**
+     * Returns the ticket.get results of a multicall response, unwrapped from
+     * their response objects.
+     */
+    public static JSONArray[] ticketResults(String multicallResponse) throws Exception {
+        List<?> entries = (List<?>) JSONRPC2Response.parse(multicallResponse, false, true).getResult();
+        JSONArray[] results = new JSONArray[entries.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = (JSONArray) ((JSONObject) entries.get(i)).get("result");
+        }
+        return results;
+    }
+
+    /**
+     * Writes a payload of a multiple of {@link #RECORDED} tickets, the
+     * recorded tickets repeated with their ids moved past the previous copy.
+     */
+    @SuppressWarnings("unchecked")
+    private static void generate(int tickets, File file) throws Exception {
+        if (tickets % RECORDED != 0) {
+            throw new FileNotFoundException(file + " is missing; only multiples of " + RECORDED
+                    + " tickets can be generated");
+        }
+        JSONArray[] recorded = ticketResults(read(fixture(RECORDED)));
+        JSONArray results = new JSONArray();
+        for (int copy = 0; copy < tickets / RECORDED; copy++) {
+            for (JSONArray result : recorded) {
+                JSONArray ticket = new JSONArray();
+                ticket.addAll(result);
+                ticket.set(0, ((Number) result.get(0)).longValue() + copy * RECORDED);
+                results.add(new JSONRPC2Response(ticket, null).toJSON());
+            }
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(new JSONRPC2Response(results, 1L).toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder sb = new StringBuilder((int) file.length());
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Generates the fixtures that are missing.
+     */
+    public static void main(String[] args) throws Exception {
+        for (int tickets : SIZES) {
+            System.out.println(tickets + " tickets: " + multicallResponse(tickets).length() + " chars");
+        }
+    }
+}
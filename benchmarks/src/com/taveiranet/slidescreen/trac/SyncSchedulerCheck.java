@@ -0,0 +1,117 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.Random;
+
+/**
+ * Drives the policy of {@link SyncScheduler} with a fake clock:
+ *
+ * <ul>
+ * <li>a sync that changed data sets the interval back to the minimum;</li>
+ * <li>a sync that changed nothing, or failed, doubles it up to the
+ * maximum;</li>
+ * <li>every run time is moved by at most the jitter, either way, and the
+ * jitter is actually spread over that range;</li>
+ * <li>nothing runs before it is due, and requestSync makes it due.</li>
+ * </ul>
+ *
+ * Run with {@code ant run -Dmain=com.taveiranet.slidescreen.trac.SyncSchedulerCheck};
+ * the optional argument is the number of syncs, 100000 by default. Exits
+ * with status 1 on any violation.
+ */
+public class SyncSchedulerCheck {
+
+    private static final long MIN_INTERVAL = 5 * 60 * 1000L;
+    private static final long MAX_INTERVAL = 60 * 60 * 1000L;
+
+    private static final int CHANGED = 0;
+    private static final int UNCHANGED = 1;
+    private static final int FAILED = 2;
+
+    private static class FakeClock implements SyncScheduler.Clock {
+        long now = 1300000000000L;
+
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    /**
+     * A task whose outcome is set before each run.
+     */
+    private static class ScriptedTask implements SyncScheduler.SyncTask {
+        int outcome = CHANGED;
+        int runs = 0;
+
+        public boolean sync() throws Exception {
+            runs++;
+            if (outcome == FAILED) {
+                throw new Exception("Server unreachable");
+            }
+            return outcome == CHANGED;
+        }
+    }
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        int syncs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        FakeClock clock = new FakeClock();
+        ScriptedTask task = new ScriptedTask();
+        SyncScheduler scheduler = new SyncScheduler(task, clock, new Random(42), MIN_INTERVAL, MAX_INTERVAL,
+                SyncScheduler.DEFAULT_JITTER);
+        Random outcomes = new Random(7);
+
+        check(scheduler.getInterval() == MIN_INTERVAL, "starts at " + scheduler.getInterval());
+        check(scheduler.runIfDue(), "first sync not due at once");
+
+        long expected = scheduler.getInterval();
+        double minSpread = 0;
+        double maxSpread = 0;
+        for (int i = 0; i < syncs; i++) {
+            // Long runs of the same outcome reach the maximum
+            task.outcome = outcomes.nextInt(8) == 0 ? outcomes.nextInt(3) : task.outcome;
+
+            clock.now = scheduler.getNextRunTime() - 1;
+            check(!scheduler.runIfDue(), "ran 1 ms early");
+
+            clock.now = scheduler.getNextRunTime();
+            int runs = task.runs;
+            check(scheduler.runIfDue() && task.runs == runs + 1, "didn't run when due");
+
+            expected = task.outcome == CHANGED ? MIN_INTERVAL : Math.min(MAX_INTERVAL, expected * 2);
+            check(scheduler.getInterval() == expected, "interval " + scheduler.getInterval() + " after "
+                    + name(task.outcome) + ", expected " + expected);
+            check((scheduler.getLastError() != null) == (task.outcome == FAILED),
+                    "last error " + scheduler.getLastError() + " after " + name(task.outcome));
+
+            double spread = (double) (scheduler.getNextRunTime() - clock.now - expected) / expected;
+            check(Math.abs(spread) <= SyncScheduler.DEFAULT_JITTER, "jitter " + spread + " out of range");
+            minSpread = Math.min(minSpread, spread);
+            maxSpread = Math.max(maxSpread, spread);
+        }
+
+        // Not due for minutes, but an explicit request runs it now
+        check(!scheduler.runIfDue(), "ran before due");
+        scheduler.requestSync();
+        check(scheduler.runIfDue(), "requestSync didn't make the sync due");
+
+        // Anything narrower would mean the jitter isn't applied as documented
+        check(minSpread < -0.09 && maxSpread > 0.09, "jitter only spread over " + minSpread + " to " + maxSpread);
+
+        System.out.println(String.format("%d syncs: jitter %+.3f to %+.3f, %d failures", syncs, minSpread,
+                maxSpread, failures));
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String name(int outcome) {
+        return outcome == CHANGED ? "a change" : outcome == UNCHANGED ? "no change" : "a failure";
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition && failures++ < 10) {
+            System.out.println(message);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.thetransactioncompany.jsonrpc2;
+
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+
+/**
+ * Stress check of the per-thread JSON parsers of {@link JSONRPC2Message}:
+ * many threads parse thousands of distinct Trac-like responses and requests
+ * at the same time, through the string and the streaming entry points, and
+ * every parsed message is compared with the one that was serialized.
+ *
+ * <p>Run with {@code ant run -Dmain=com.thetransactioncompany.jsonrpc2.ConcurrentParseCheck}.
+ * Optional arguments are the number of threads and of parses per thread.
+ * Passing "shared" as a third argument parses with one JSONParser shared by
+ * all threads instead, as before the parsers were per thread, which shows
+ * the check catches the corruption. Exits with status 1 on any mismatch.
+ */
+public class ConcurrentParseCheck {
+
+
+	/**
+	 * The number of distinct messages, so that concurrent parses are of
+	 * different input.
+	 */
+	private static final int MESSAGES = 256;
+
+
+	private final List<String> responses = new ArrayList<String>();
+
+
+	private final List<String> requests = new ArrayList<String>();
+
+
+	private final List<String> summaries = new ArrayList<String>();
+
+
+	private final JSONParser sharedParser;
+
+
+	private ConcurrentParseCheck(final boolean shared) {
+
+		sharedParser = shared ? new JSONParser() : null;
+		Random random = new Random(42);
+
+		for (int i = 0; i < MESSAGES; i++) {
+
+			StringBuilder summary = new StringBuilder("ticket " + i);
+
+			// Lengths vary so lexer buffers are grown and reused
+			for (int words = random.nextInt(200); words > 0; words--)
+				summary.append(" word").append(random.nextInt(1000));
+
+			summaries.add(summary.toString());
+			responses.add(new JSONRPC2Response(ticket(i, summary.toString()), (long)i).toString());
+
+			List<Object> params = new ArrayList<Object>();
+			params.add((long)i);
+			requests.add(new JSONRPC2Request("ticket.get", params, (long)i).toString());
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	private static JSONArray ticket(final long id, final String summary) {
+
+		JSONObject attributes = new JSONObject();
+		attributes.put("summary", summary);
+		attributes.put("status", "new");
+		attributes.put("_ts", String.valueOf(id * 1000000L));
+
+		JSONArray ticket = new JSONArray();
+		ticket.add(id);
+		ticket.add(attributes);
+		return ticket;
+	}
+
+
+	/**
+	 * Parses random messages and counts those that don't match.
+	 */
+	private int parse(final long seed, final int count)
+		throws Exception {
+
+		Random random = new Random(seed);
+		int mismatches = 0;
+
+		for (int n = 0; n < count; n++) {
+
+			int i = random.nextInt(MESSAGES);
+			String json = responses.get(i);
+			JSONRPC2Response response;
+
+			try {
+				switch (n % 3) {
+
+					case 0:
+						response = sharedParser != null ? sharedParse(json) : JSONRPC2Response.parse(json, false, true);
+						break;
+
+					case 1:
+						response = JSONRPC2Response.parse(new StringReader(json), false, true);
+						break;
+
+					default:
+						JSONRPC2Request request = JSONRPC2Request.parse(requests.get(i), false, true);
+
+						if (!Long.valueOf(i).equals(request.getID())) {
+							mismatches++;
+							continue;
+						}
+
+						response = JSONRPC2Response.parse(json, false, true);
+				}
+			} catch (JSONRPC2ParseException e) {
+				mismatches++;
+				continue;
+			} catch (RuntimeException e) {
+				// A corrupted parser state can fail anywhere in the parser
+				mismatches++;
+				continue;
+			} catch (Error e) {
+				// json-simple's lexer throws Error on input it can't match
+				mismatches++;
+				continue;
+			}
+
+			if (!matches(response, i))
+				mismatches++;
+		}
+
+		return mismatches;
+	}
+
+
+	private JSONRPC2Response sharedParse(final String json)
+		throws JSONRPC2ParseException {
+
+		Object parsed;
+
+		try {
+			parsed = sharedParser.parse(json);
+		} catch (Exception e) {
+			throw new JSONRPC2ParseException(e.getMessage());
+		}
+
+		if (!(parsed instanceof JSONObject))
+			throw new JSONRPC2ParseException("Not an object");
+
+		JSONObject object = (JSONObject)parsed;
+		return new JSONRPC2Response(object.get("result"), object.get("id"));
+	}
+
+
+	private boolean matches(final JSONRPC2Response response, final int i) {
+
+		if (!Long.valueOf(i).equals(response.getID()) || !(response.getResult() instanceof JSONArray))
+			return false;
+
+		JSONArray ticket = (JSONArray)response.getResult();
+
+		if (ticket.size() != 2 || !Long.valueOf(i).equals(ticket.get(0)))
+			return false;
+
+		return summaries.get(i).equals(((JSONObject)ticket.get(1)).get("summary"));
+	}
+
+
+	public static void main(final String[] args)
+		throws Exception {
+
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		final ConcurrentParseCheck check = new ConcurrentParseCheck(args.length > 2 && "shared".equals(args[2]));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+		for (int t = 0; t < threads; t++) {
+
+			final long seed = t;
+
+			results.add(executor.submit(new Callable<Integer>() {
+
+				public Integer call()
+					throws Exception {
+
+					start.await();
+					return check.parse(seed, perThread);
+				}
+			}));
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		int mismatches = 0;
+
+		try {
+			for (Future<Integer> result: results)
+				mismatches += result.get();
+		} finally {
+			executor.shutdown();
+		}
+
+		long millis = (System.nanoTime() - begin) / 1000000L;
+
+		System.out.println(threads + " threads x " + perThread + " parses in " + millis + " ms: "
+		                   + mismatches + " mismatches");
+
+		if (mismatches > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,71 @@
+package com.thetransactioncompany.jsonrpc2;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taveiranet.slidescreen.bench.Fixtures;
+
+
+/**
+ * Parsing and serialization of system.multicall messages fetching 10, 1k
+ * and 50k tickets, see {@link Fixtures}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JSONRPC2Benchmark {
+
+
+	@Param({"10", "1000", "50000"})
+	public int tickets;
+
+
+	private String response;
+
+
+	private JSONRPC2Request request;
+
+
+	@Setup
+	public void setUp()
+		throws Exception {
+
+		response = Fixtures.multicallResponse(tickets);
+		request = Fixtures.multicallRequest(tickets);
+	}
+
+
+	/**
+	 * {@link JSONRPC2Response#parse(String, boolean, boolean)} the way
+	 * {@link com.thetransactioncompany.jsonrpc2.client.JSONRPC2Session}
+	 * parses Trac's responses, not strict and without preserving order.
+	 */
+	@Benchmark
+	public JSONRPC2Response parseResponse()
+		throws JSONRPC2ParseException {
+
+		return JSONRPC2Response.parse(response, false, true);
+	}
+
+
+	@Benchmark
+	public String serializeRequest() {
+
+		return request.toString();
+	}
+}
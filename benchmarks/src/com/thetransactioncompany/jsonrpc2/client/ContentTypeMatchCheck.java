@@ -0,0 +1,114 @@
+package com.thetransactioncompany.jsonrpc2.client;
+
+
+import java.net.URL;
+import java.util.regex.Pattern;
+
+import com.taveiranet.slidescreen.bench.Allocations;
+
+
+/**
+ * Checks {@link JSONRPC2Session#isAllowedResponseContentType} on typical
+ * and tricky header values, and measures what a call allocates next to the
+ * regular expression match it replaced.
+ *
+ * <p>Run with {@code ant run -Dmain=com.thetransactioncompany.jsonrpc2.client.ContentTypeMatchCheck}.
+ * Exits with status 1 if a header is matched wrongly or the match
+ * allocates.
+ */
+public class ContentTypeMatchCheck {
+
+
+	/**
+	 * Header values and whether the default allowed types accept them.
+	 */
+	private static final Object[][] CASES = {
+		{"application/json", true},
+		{"application/json; charset=utf-8", true},
+		{"application/json;charset=UTF-8", true},
+		{"APPLICATION/JSON; charset=ISO-8859-1", true},
+		{"application/json ; charset=utf-8", true},
+		{"text/plain", true},
+		{"text/plain; charset=us-ascii", true},
+		{"text/html; charset=utf-8", false},
+		{"application/jsonrequest", false},
+		{"application/json-rpc", false},
+		{"application/x-www-form-urlencoded", false},
+		{"text/plainx", false},
+		{"", false},
+		{null, false}
+	};
+
+
+	/**
+	 * Bytes per call still counted as allocation-free, for the odd
+	 * allocation of the measuring thread itself.
+	 */
+	private static final double ALLOCATION_SLACK = 0.1;
+
+
+	public static void main(final String[] args)
+		throws Exception {
+
+		final JSONRPC2Session session = new JSONRPC2Session(new URL("http://localhost/rpc"));
+		int failures = 0;
+
+		for (Object[] c: CASES) {
+
+			boolean allowed = session.isAllowedResponseContentType((String)c[0]);
+
+			if (allowed != (Boolean)c[1]) {
+				System.out.println("Wrong match of \"" + c[0] + "\": " + allowed);
+				failures++;
+			}
+		}
+
+		System.out.println(CASES.length + " header values: " + failures + " failures");
+
+		final String[] headers = {"application/json; charset=utf-8", "text/plain", "text/html; charset=utf-8"};
+		final boolean[] sink = new boolean[1];
+
+		double regex = Allocations.perCall(new Runnable() {
+
+			private int next = 0;
+
+			public void run() {
+
+				sink[0] ^= matchesAsBefore(session.getAllowedResponseContentTypes(), headers[next++ % headers.length]);
+			}
+		}, 100000);
+
+		double matcher = Allocations.perCall(new Runnable() {
+
+			private int next = 0;
+
+			public void run() {
+
+				sink[0] ^= session.isAllowedResponseContentType(headers[next++ % headers.length]);
+			}
+		}, 1000000);
+
+		// Printing the result keeps the JIT from dropping the matching
+		System.out.println(String.format("Bytes allocated per match: %.0f with the regular expression, %.2f now (%b)",
+		                                 regex, matcher, sink[0]));
+
+		if (failures > 0 || matcher > ALLOCATION_SLACK)
+			System.exit(1);
+	}
+
+
+	/**
+	 * The match of JSONRPC2Session before the allowed types were matched
+	 * directly.
+	 */
+	private static boolean matchesAsBefore(final String[] allowed, final String contentType) {
+
+		for (String t: allowed) {
+
+			if (contentType.matches("^" + Pattern.quote(t) + "(\\s|;|$)?.*"))
+				return true;
+		}
+
+		return false;
+	}
+}
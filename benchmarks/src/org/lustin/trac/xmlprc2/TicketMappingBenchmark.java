@@ -0,0 +1,66 @@
+package org.lustin.trac.xmlprc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taveiranet.slidescreen.bench.Fixtures;
+
+/**
+ * Mapping ticket.get results onto tickets, as {@link Trac#getTicket} and
+ * {@link Trac#getTickets} do, and sorting the tickets by priority.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TicketMappingBenchmark {
+
+	@Param({"10", "1000", "50000"})
+	public int tickets;
+
+	private JSONArray[] results;
+	private List<TicketImpl> parsed;
+
+	@Setup
+	public void setUp() throws Exception {
+		results = Fixtures.ticketResults(Fixtures.multicallResponse(tickets));
+		parsed = mapTickets();
+	}
+
+	@Benchmark
+	public List<TicketImpl> mapTickets() throws TracException {
+		List<TicketImpl> mapped = new ArrayList<TicketImpl>(results.length);
+		for(JSONArray result: results){
+			mapped.add(Trac.parseTicket(result, PriorityRanks.DEFAULT));
+		}
+		return mapped;
+	}
+
+	/**
+	 * Sorts a copy in the order of the server's result, so every
+	 * invocation sorts the same input.
+	 */
+	@Benchmark
+	public List<TicketImpl> sortByPriority() {
+		List<TicketImpl> sorted = new ArrayList<TicketImpl>(parsed);
+		Collections.sort(sorted, TicketImpl.getPriorityOrderComparator());
+		return sorted;
+	}
+}
@@ -0,0 +1,174 @@
+package org.lustin.trac.xmlprc2;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.taveiranet.slidescreen.bench.Allocations;
+
+import java.lang.System;
+
+/**
+ * Checks {@link TracDateTime} against SimpleDateFormat and measures what
+ * decoding the times of a ticket allocates.
+ *
+ * <ul>
+ * <li>Round trip: for random instants at second precision between 1970 and
+ * 2100, format and parse must agree with a UTC SimpleDateFormat, and
+ * parsing the formatted value must give the instant back.</li>
+ * <li>Allocation: the attribute values of 1000 tickets shaped like Trac's
+ * ticket.get results are decoded the way Trac.getTicket did before
+ * TracDateTime, with a Calendar per attribute and a SimpleDateFormat per
+ * datetime, and with TracDateTime. The bytes allocated per ticket are
+ * compared.</li>
+ * </ul>
+ *
+ * Run with {@code ant run -Dmain=org.lustin.trac.xmlprc2.TracDateTimeCheck};
+ * the optional argument is the number of instants, 200000 by default. Exits
+ * with status 1 if an instant doesn't round trip or the decoder allocates.
+ */
+public class TracDateTimeCheck {
+
+	private static final long YEAR_2100 = 4102444800000L;
+
+	/**
+	 * Bytes per ticket still counted as allocation-free, for the odd
+	 * allocation of the measuring thread itself.
+	 */
+	private static final double ALLOCATION_SLACK = 1.0;
+
+	public static void main(String[] args) throws Exception {
+		int instants = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		boolean ok = roundTrip(instants);
+		ok &= allocation();
+		if(!ok){
+			System.exit(1);
+		}
+	}
+
+	private static boolean roundTrip(int instants) throws ParseException {
+		SimpleDateFormat reference = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		reference.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Random random = new Random(42);
+		int failures = 0;
+		for(int i = 0; i < instants; i++){
+			long time = (long) (random.nextDouble() * YEAR_2100) / 1000 * 1000;
+			String formatted = TracDateTime.format(time);
+			if(!reference.format(time).equals(formatted)
+					|| reference.parse(formatted).getTime() != time
+					|| TracDateTime.parse(formatted) != time
+					|| TracDateTime.parse(TracDateTime.toJSON(time)) != time){
+				if(failures++ < 10){
+					System.out.println("Mismatch at " + time + ": " + formatted + ", expected " + reference.format(time));
+				}
+			}
+		}
+		System.out.println("Round trip of " + instants + " instants: " + failures + " failures");
+		return failures == 0;
+	}
+
+	private static boolean allocation() {
+		final Object[][] tickets = ticketValues(1000);
+		final long[] sink = new long[1];
+
+		double before = Allocations.perCall(new Runnable() {
+			private int next = 0;
+
+			public void run() {
+				sink[0] += decodeAsBefore(tickets[next++ % tickets.length]);
+			}
+		}, tickets.length * 10);
+
+		double after = Allocations.perCall(new Runnable() {
+			private int next = 0;
+
+			public void run() {
+				sink[0] += decode(tickets[next++ % tickets.length]);
+			}
+		}, tickets.length * 100);
+
+		// Printing the sum keeps the JIT from dropping the decoding
+		System.out.println(String.format("Bytes allocated per ticket: %.0f before, %.2f with TracDateTime (sum %d)",
+				before, after, sink[0]));
+		return after <= ALLOCATION_SLACK;
+	}
+
+	/**
+	 * Returns the attribute values of the given number of tickets as
+	 * ticket.get sends them: strings, and the creation and change times as
+	 * datetime objects.
+	 */
+	private static Object[][] ticketValues(int count) {
+		Random random = new Random(7);
+		String[] statuses = {"new", "assigned", "accepted", "reopened", "closed"};
+		Object[][] tickets = new Object[count][];
+		for(int i = 0; i < count; i++){
+			long created = 1300000000000L - random.nextInt(365 * 24 * 3600) * 1000L;
+			long changed = created + random.nextInt(30 * 24 * 3600) * 1000L;
+			List<Object> values = new ArrayList<Object>();
+			values.add("Ticket " + i + " summary");
+			values.add(statuses[random.nextInt(statuses.length)]);
+			values.add("defect");
+			values.add("major");
+			values.add("component" + random.nextInt(10));
+			values.add("milestone" + random.nextInt(5));
+			values.add("");
+			values.add("");
+			values.add("user" + random.nextInt(20));
+			values.add("user" + random.nextInt(20));
+			values.add("");
+			values.add("A description of ticket " + i);
+			values.add(String.valueOf(changed * 1000));
+			values.add(TracDateTime.toJSON(created));
+			values.add(TracDateTime.toJSON(changed));
+			tickets[i] = values.toArray();
+		}
+		return tickets;
+	}
+
+	/**
+	 * The attribute loop of Trac.getTicket before TracDateTime, reduced to
+	 * the time decoding.
+	 */
+	private static long decodeAsBefore(Object[] values) {
+		long sum = 0;
+		for(Object value: values){
+			Calendar timeValue = Calendar.getInstance();
+			if(!(value instanceof String)){
+				SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+				String date = (String) ((JSONArray) ((JSONObject) value).get("__jsonclass__")).get(1);
+				try {
+					timeValue.setTime(format.parse(date));
+				} catch (ParseException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			sum += timeValue.getTimeInMillis();
+		}
+		return sum;
+	}
+
+	/**
+	 * The attribute loop of Trac.parseTicket, reduced to the time
+	 * decoding.
+	 */
+	private static long decode(Object[] values) {
+		long sum = 0;
+		for(Object value: values){
+			if(!(value instanceof String)){
+				long time = TracDateTime.parse(value);
+				if(time != TracDateTime.INVALID){
+					sum += time;
+				}
+			}
+		}
+		return sum;
+	}
+}
@@ -993,6 +993,61 @@ public class Base64Util
     }   // end encodeBytesToBytes
 
 
+    /**
+     * Encodes a byte array into Base64 notation, writing into the given
+     * destination array instead of allocating one. No options are applied:
+     * standard alphabet, no line breaks. The destination must have room for
+     * {@link #encodedLength(int) encodedLength(len)} bytes at
+     * <var>destOff</var>.
+     *
+     * @param source The data to convert
+     * @param off Offset in array where conversion should begin
+     * @param len Length of data to convert
+     * @param destination Array to hold the encoded bytes
+     * @param destOff Offset in destination where writing should begin
+     * @return Number of bytes written
+     * @throws IllegalArgumentException if an offset or length is invalid
+     */
+    public static int encodeBytesToBytes( byte[] source, int off, int len, byte[] destination, int destOff ) {
+
+        if( off < 0 || len < 0 || off + len > source.length ){
+            throw new IllegalArgumentException(
+            String.format( "Cannot have offset of %d and length of %d with array of length %d", off,len,source.length));
+        }   // end if: invalid source range
+
+        int encLen = encodedLength( len );
+        if( destOff < 0 || destOff + encLen > destination.length ){
+            throw new IllegalArgumentException(
+            String.format( "Destination array of length %d has no room for %d bytes at %d", destination.length, encLen, destOff));
+        }   // end if: destination too small
+
+        int d = 0;
+        int e = destOff;
+        int len2 = len - 2;
+        for( ; d < len2; d+=3, e+=4 ) {
+            encode3to4( source, d+off, 3, destination, e, NO_OPTIONS );
+        }   // end for: each piece of array
+
+        if( d < len ) {
+            encode3to4( source, d+off, len - d, destination, e, NO_OPTIONS );
+        }   // end if: some padding needed
+
+        return encLen;
+    }   // end encodeBytesToBytes
+
+
+    /**
+     * Returns the number of bytes <var>len</var> source bytes take once
+     * encoded without line breaks.
+     *
+     * @param len Length of data to convert
+     * @return The encoded length, including padding
+     */
+    public static int encodedLength( int len ) {
+        return ( len / 3 ) * 4 + ( len % 3 > 0 ? 4 : 0 );
+    }   // end encodedLength
+
+
 
 
 
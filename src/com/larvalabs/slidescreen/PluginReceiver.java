@@ -2,6 +2,8 @@ package com.larvalabs.slidescreen;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -36,31 +38,24 @@ public abstract class PluginReceiver extends BroadcastReceiver {
 
     public static final String EXTRA_MARK_READ_ID = "markReadId";   // Type: String
 
+    /**
+     * Registration payloads by receiver class, built on the first discovery
+     * broadcast. A receiver instance only lives for one broadcast, so the
+     * payload is kept per process instead.
+     */
+    private static final Map<Class<?>, Intent> registrations = new HashMap<Class<?>, Intent>();
+
 
     @Override
     public final void onReceive(Context context, Intent intent) {
         if (INTENT_ACTION_DISCOVER_PLUGINS.equals(intent.getAction())) {
             Log.d(LOGTAG, "Plugin Discovery broadcast Received.");
-            Uri uri = intent.getData();
-            Intent response = new Intent(INTENT_ACTION_REGISTER_PLUGIN);
-            response.setData(uri);
-            response.putExtra(EXTRA_PROVIDER_URI, getContentProviderURI());
-            response.putExtra(EXTRA_GROUP_NAME, getName());
-            response.putExtra(EXTRA_PLUGIN_API_VERSION, API_VERSION);
-            response.putExtra(EXTRA_GROUP_COLOR, getColor());
-            InputStream iconInputStream = context.getResources().openRawResource(getIconResourceId());
-            String iconData = null;
-            try {
-                iconData = PluginUtils.readAll(iconInputStream);
-            } catch (IOException e) {
-                Log.e(LOGTAG, "Error reading icon file: " + e.getMessage(), e);
+            Intent registration = getRegistration(context);
+            if (registration == null) {
                 return;
             }
-            response.putExtra(EXTRA_ICON, iconData);
-            response.putExtra(EXTRA_GROUP_INTENT, getSingleTapShortcutIntents());
-            response.putExtra(EXTRA_LONG_INTENT, getLongpressShortcutIntents());
-            response.putExtra(EXTRA_PREFERENCE_INTENT, getPreferenceActivityIntent());
-            response.putExtra(EXTRA_RECEIVER_CLASS, this.getClass().getName());
+            Intent response = new Intent(registration);
+            response.setData(intent.getData());
             Log.d(LOGTAG, "Sending response broadcast...");
             context.sendBroadcast(response);
             Log.d(LOGTAG, "Done.");
@@ -72,6 +67,39 @@ public abstract class PluginReceiver extends BroadcastReceiver {
 
     }
     
+    /**
+     * Returns the cached registration payload, without data, building it
+     * on first use. Returns null if the icon can't be read.
+     */
+    private Intent getRegistration(Context context) {
+        synchronized (registrations) {
+            Intent registration = registrations.get(getClass());
+            if (registration != null) {
+                return registration;
+            }
+            registration = new Intent(INTENT_ACTION_REGISTER_PLUGIN);
+            registration.putExtra(EXTRA_PROVIDER_URI, getContentProviderURI());
+            registration.putExtra(EXTRA_GROUP_NAME, getName());
+            registration.putExtra(EXTRA_PLUGIN_API_VERSION, API_VERSION);
+            registration.putExtra(EXTRA_GROUP_COLOR, getColor());
+            InputStream iconInputStream = context.getResources().openRawResource(getIconResourceId());
+            String iconData = null;
+            try {
+                iconData = PluginUtils.readAll(iconInputStream);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Error reading icon file: " + e.getMessage(), e);
+                return null;
+            }
+            registration.putExtra(EXTRA_ICON, iconData);
+            registration.putExtra(EXTRA_GROUP_INTENT, getSingleTapShortcutIntents());
+            registration.putExtra(EXTRA_LONG_INTENT, getLongpressShortcutIntents());
+            registration.putExtra(EXTRA_PREFERENCE_INTENT, getPreferenceActivityIntent());
+            registration.putExtra(EXTRA_RECEIVER_CLASS, this.getClass().getName());
+            registrations.put(getClass(), registration);
+            return registration;
+        }
+    }
+
     public abstract Uri getContentProviderURI();
 
     public abstract String getName();
@@ -1,19 +1,21 @@
 package com.larvalabs.slidescreen;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Parcel;
+import android.util.Log;
 
 /**
  * User: matt
@@ -22,8 +24,7 @@ import android.os.Parcel;
  */
 public class PluginUtils {
 
-    @SuppressWarnings("unused")
-	private static final String TAG = PluginUtils.class.getName();
+    private static final String TAG = PluginUtils.class.getName();
 
     public static final String SEPERATOR = "!";
 
@@ -39,26 +40,123 @@ public class PluginUtils {
         return encodeIntents(Arrays.asList(intents));
     }
 
-    public static String encodeIntents(List<Intent> intents) {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(bout);
-        try {
-            out.writeInt(intents.size());
-            for (Intent intent : intents) {
-                Parcel parcel = Parcel.obtain();
+    /**
+     * Per-thread buffer the intents are framed in before the final Base64
+     * pass, grown as needed and reused between calls.
+     */
+    private static final ThreadLocal<byte[][]> encodeBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] { new byte[1024] };
+        }
+    };
+
+    /**
+     * Turns an item into the bytes SlideScreen unmarshalls it from.
+     */
+    public static interface Marshaller<T> {
+        byte[] marshall(T item);
+    }
+
+    private static final Marshaller<Intent> INTENT_MARSHALLER = new Marshaller<Intent>() {
+        public byte[] marshall(Intent intent) {
+            Parcel parcel = Parcel.obtain();
+            try {
                 intent.writeToParcel(parcel, 0);
-                byte[] data = parcel.marshall();
-                final String s = Base64Util.encodeBytes(data);
-                out.writeUTF(s);
+                return parcel.marshall();
+            } finally {
                 parcel.recycle();
             }
-            out.close();
-            byte[] result = bout.toByteArray();
-            return Base64Util.encodeBytes(result);
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return "";
+    };
+
+    /**
+     * Encodes intents the way SlideScreen decodes them, see
+     * {@link #encode(List, Marshaller)}.
+     */
+    public static String encodeIntents(List<Intent> intents) {
+        return encode(intents, INTENT_MARSHALLER);
+    }
+
+    /**
+     * Encodes items the way SlideScreen decodes intents: Base64 of an int
+     * count followed by each marshalled item as a Base64 string in
+     * {@link java.io.DataOutputStream#writeUTF} framing. The inner Base64 is
+     * written straight into one reusable buffer, which is ASCII and so
+     * already in writeUTF's encoding.
+     */
+    public static <T> String encode(List<T> items, Marshaller<? super T> marshaller) {
+        byte[][] holder = encodeBuffers.get();
+        byte[] buffer = holder[0];
+        int count = items.size();
+        buffer[0] = (byte) (count >>> 24);
+        buffer[1] = (byte) (count >>> 16);
+        buffer[2] = (byte) (count >>> 8);
+        buffer[3] = (byte) count;
+        int length = 4;
+        for (T item : items) {
+            byte[] data = marshaller.marshall(item);
+            int encodedLength = Base64Util.encodedLength(data.length);
+            if (encodedLength > 0xFFFF) {
+                // Too long for writeUTF framing
+                Log.w(TAG, "Encoded item too long: " + encodedLength);
+                return "";
+            }
+            if (length + 2 + encodedLength > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, length + 2 + encodedLength)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+                holder[0] = buffer;
+            }
+            buffer[length++] = (byte) (encodedLength >>> 8);
+            buffer[length++] = (byte) encodedLength;
+            length += Base64Util.encodeBytesToBytes(data, 0, data.length, buffer, length);
+        }
+        return Base64Util.encodeBytes(buffer, 0, length);
+    }
+
+    /**
+     * Encoded ACTION_VIEW intents by item id, reused until the item's URL
+     * changes. The least recently used entries are dropped beyond the
+     * maximum size.
+     */
+    public static class EncodedIntentCache {
+
+        private final Map<Long, String[]> entries;
+
+        public EncodedIntentCache(final int maxSize) {
+            entries = new LinkedHashMap<Long, String[]>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, String[]> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        /**
+         * Returns the encoded ACTION_VIEW intent for the given item and URL.
+         */
+        public String getViewIntent(long id, String url) {
+            synchronized (entries) {
+                String[] entry = entries.get(id);
+                if (entry != null && entry[0].equals(url)) {
+                    return entry[1];
+                }
+            }
+            String encoded = encodeIntents(new Intent(Intent.ACTION_VIEW, Uri.parse(url)));
+            synchronized (entries) {
+                entries.put(id, new String[] { url, encoded });
+            }
+            return encoded;
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
     }
 
     public static String readAll(InputStream stream) throws IOException {
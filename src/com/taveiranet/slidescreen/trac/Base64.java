@@ -1,10 +1,13 @@
 package com.taveiranet.slidescreen.trac;
 
+import com.larvalabs.slidescreen.Base64Util;
+
+/**
+ * String front end to {@link Base64Util}, which does the actual encoding in
+ * linear time.
+ */
 public class Base64 {
 	 
-    private static final String base64code = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
-            + "abcdefghijklmnopqrstuvwxyz" + "0123456789" + "+/";
- 
     private static final int splitLinesAt = 76;
  
     public static byte[] zeroPad(int length, byte[] bytes) {
@@ -15,42 +18,25 @@ public class Base64 {
  
     public static String encode(String string, boolean splitLines) {
  
-        String encoded = "";
         byte[] stringArray;
         try {
             stringArray = string.getBytes("UTF-8");  // use appropriate encoding string!
         } catch (Exception ignored) {
             stringArray = string.getBytes();  // use locale default rather than croak
         }
-        // determine how many padding bytes to add to the output
-        int paddingCount = (3 - (stringArray.length % 3)) % 3;
-        // add any necessary padding to the input
-        stringArray = zeroPad(stringArray.length + paddingCount, stringArray);
-        // process 3 bytes at a time, churning out 4 output bytes
-        // worry about CRLF insertions later
-        for (int i = 0; i < stringArray.length; i += 3) {
-            int j = ((stringArray[i] & 0xff) << 16) +
-                ((stringArray[i + 1] & 0xff) << 8) + 
-                (stringArray[i + 2] & 0xff);
-            encoded = encoded + base64code.charAt((j >> 18) & 0x3f) +
-                base64code.charAt((j >> 12) & 0x3f) +
-                base64code.charAt((j >> 6) & 0x3f) +
-                base64code.charAt(j & 0x3f);
-        }
-        // replace encoded padding nulls with "="
-        return (splitLines)?splitLines(encoded.substring(0, encoded.length() -
-            paddingCount) + "==".substring(0, paddingCount)):encoded;
+        String encoded = Base64Util.encodeBytes(stringArray);
+        return (splitLines)?splitLines(encoded):encoded;
  
     }
     public static String splitLines(String string) {
  
-        String lines = "";
+        StringBuilder lines = new StringBuilder(string.length() + (string.length() / splitLinesAt + 1) * 2);
         for (int i = 0; i < string.length(); i += splitLinesAt) {
  
-            lines += string.substring(i, Math.min(string.length(), i + splitLinesAt));
-            lines += "\r\n";
+            lines.append(string, i, Math.min(string.length(), i + splitLinesAt));
+            lines.append("\r\n");
  
         }
-        return lines;
+        return lines.toString();
     }
 }
@@ -3,6 +3,7 @@ package com.taveiranet.slidescreen.trac;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 import android.util.Log;
 
 public class SlideScreenTracBroadcastReceiver extends BroadcastReceiver {
@@ -14,6 +15,14 @@ public class SlideScreenTracBroadcastReceiver extends BroadcastReceiver {
         Log.d(TAG, "* onReceive called.");
         
         Log.d(TAG, "Intent received: " + arg1.getAction());
-		arg0.getContentResolver().notifyChange(SlideTracContentProvider.CONTENT_URI, null);
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(arg1.getAction())
+                && arg1.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+            // Lost the network, queued edits wait until it is back
+            return;
+        }
+        if (!SlideTracContentProvider.requestRefresh()) {
+            // No provider yet, have SlideScreen query it so it gets created
+            arg0.getContentResolver().notifyChange(SlideTracContentProvider.CONTENT_URI, null);
+        }
 	}
 }
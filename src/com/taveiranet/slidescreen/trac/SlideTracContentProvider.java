@@ -10,18 +10,16 @@ import static com.larvalabs.slidescreen.PluginConstants.FIELD_TEXT;
 import static com.larvalabs.slidescreen.PluginConstants.FIELD_TITLE;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.lustin.trac.xmlprc2.TicketImpl;
-import org.lustin.trac.xmlprc2.Trac;
-import org.lustin.trac.xmlprc2.TracException;
-
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
@@ -29,6 +27,10 @@ import android.provider.BaseColumns;
 import android.util.Log;
 
 import com.larvalabs.slidescreen.PluginUtils;
+import com.taveiranet.slidescreen.trac.TicketStore.TicketColumns;
+import com.thetransactioncompany.jsonrpc2.client.HTTPConnectionPool;
+import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+import com.thetransactioncompany.jsonrpc2.client.RPCStatistics;
 
 /**
  * @author João Pedro Taveira
@@ -39,6 +41,81 @@ public class SlideTracContentProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://com.taveiranet.slidescreen.trac");
 
+    /**
+     * Held by the applications allowed to edit tickets through
+     * {@link #update} and {@link #insert}; only granted to applications
+     * signed with the plugin's key.
+     */
+    public static final String PERMISSION_EDIT_TICKETS = "com.taveiranet.slidescreen.trac.permission.EDIT_TICKETS";
+
+    /**
+     * Lists the JSON-RPC statistics of this process, one row per method, see
+     * {@link StatsColumns}. Only served to holders of
+     * {@link #PERMISSION_EDIT_TICKETS}, and to anyone in debuggable builds,
+     * e.g. from a shell:
+     * {@code adb shell content query --uri content://com.taveiranet.slidescreen.trac/stats}
+     */
+    public static final Uri STATS_URI = Uri.withAppendedPath(CONTENT_URI, "stats");
+
+    /**
+     * The server shown until one is configured in the preferences.
+     */
+    private static final TracServer DEFAULT_SERVER = new TracServer("http://www.taveiranet.com/projects/mcs",
+            "smiff2", "teste2", "max=0&owner=smiff&status!=closed");
+
+    /**
+     * Time a server sync may take before it is abandoned until the next
+     * refresh.
+     */
+    private static final long SERVER_SYNC_DEADLINE = 2 * 60 * 1000L;
+
+    /**
+     * Preferences file of the provider's own state, as opposed to the
+     * settings in "tracplugin.prefs".
+     */
+    private static final String STATE_PREFERENCES = "tracplugin.state";
+
+    /**
+     * Set in {@link #STATE_PREFERENCES} once the legacy ticket store is gone.
+     */
+    private static final String LEGACY_STORE_REMOVED = "legacyStoreRemoved";
+
+    /**
+     * SlideScreen item ids are the ticket id with the server index in the
+     * bits above it, see {@link TicketAggregator#getServerIndex}.
+     */
+    private static final int SERVER_INDEX_SHIFT = 40;
+
+    /**
+     * Time between two network refreshes of the ticket store while tickets
+     * keep changing.
+     */
+    private static final long MIN_REFRESH_INTERVAL = 5 * 60 * 1000L;
+
+    /**
+     * Time between two network refreshes of the ticket store once tickets
+     * stopped changing.
+     */
+    private static final long MAX_REFRESH_INTERVAL = 60 * 60 * 1000L;
+
+    /**
+     * The store columns needed to build the SlideScreen cursor.
+     */
+    private static final String[] STORE_PROJECTION = new String[] {
+        TicketColumns._ID,
+        TicketColumns.SUMMARY,
+        TicketColumns.PRIORITY,
+        TicketColumns.COMPONENT,
+        TicketColumns.CHANGE_TIME,
+        TicketColumns.PRIORITY_RANK
+    };
+
+    private TicketAggregator tickets = null;
+
+    private final PluginUtils.EncodedIntentCache intents = new PluginUtils.EncodedIntentCache(512);
+
+    private static volatile SyncScheduler scheduler = null;
+
     public static interface MessageColumns extends BaseColumns {
         /**
          * The number of milliseconds since Jan. 1, 1970, midnight GMT.
@@ -74,6 +151,90 @@ public class SlideTracContentProvider extends ContentProvider {
         String INCREMENT = "id";
     }
     
+    /**
+     * Values of {@link #update} and {@link #insert} that are not ticket
+     * fields.
+     */
+    public static interface EditColumns {
+        /**
+         * The comment to add with the change.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String COMMENT = "comment";
+
+        /**
+         * Ignored: changes are always recorded as made by the configured
+         * user of the server.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String AUTHOR = "author";
+    }
+
+    /**
+     * The columns of {@link #STATS_URI}. Times are in milliseconds, sizes in
+     * bytes.
+     */
+    public static interface StatsColumns extends BaseColumns {
+        String METHOD = "method";
+        String CALLS = "calls";
+        String TOTAL_LATENCY = "total_ms";
+        String MAX_LATENCY = "max_ms";
+        String P50_LATENCY = "p50_ms";
+        String P90_LATENCY = "p90_ms";
+        String P99_LATENCY = "p99_ms";
+
+        /**
+         * The latency histogram as "bound:count" pairs, the last bucket
+         * counting the calls slower than all bounds.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String HISTOGRAM = "histogram";
+
+        String REQUEST_BYTES = "request_bytes";
+        String RESPONSE_BYTES = "response_bytes";
+        String PARSE_TIME = "parse_ms";
+        String NETWORK_ERRORS = "network_errors";
+        String CONTENT_TYPE_ERRORS = "content_type_errors";
+        String BAD_RESPONSE_ERRORS = "bad_response_errors";
+
+        /**
+         * Responses carrying a JSON-RPC error, e.g. for an unknown ticket.
+         */
+        String ERROR_RESPONSES = "error_responses";
+
+        String RETRIES = "retries";
+
+        /**
+         * Calls refused without touching the network because the server
+         * was unreachable.
+         */
+        String REJECTED = "rejected";
+    }
+
+    private static final String[] STATS_PROJECTION = new String[] {
+        StatsColumns._ID,
+        StatsColumns.METHOD,
+        StatsColumns.CALLS,
+        StatsColumns.TOTAL_LATENCY,
+        StatsColumns.MAX_LATENCY,
+        StatsColumns.P50_LATENCY,
+        StatsColumns.P90_LATENCY,
+        StatsColumns.P99_LATENCY,
+        StatsColumns.HISTOGRAM,
+        StatsColumns.REQUEST_BYTES,
+        StatsColumns.RESPONSE_BYTES,
+        StatsColumns.PARSE_TIME,
+        StatsColumns.NETWORK_ERRORS,
+        StatsColumns.CONTENT_TYPE_ERRORS,
+        StatsColumns.BAD_RESPONSE_ERRORS,
+        StatsColumns.ERROR_RESPONSES,
+        StatsColumns.RETRIES,
+        StatsColumns.REJECTED
+    };
+
     @SuppressWarnings("unused")
 	private static final String[] DEFAULT_MESSAGE_PROJECTION = new String[] {
         MessageColumns._ID,
@@ -90,118 +251,257 @@ public class SlideTracContentProvider extends ContentProvider {
     public boolean onCreate() {
         Log.d(TAG, "* CREATED.");
         
+        // Providers are created before any other component of the process,
+        // so no connection was opened yet
+        HTTPConnectionPool.getDefault().applyKeepAliveProperties();
+        removeLegacyStore();
+        tickets = new TicketAggregator(getContext(),
+                getContext().getSharedPreferences(STATE_PREFERENCES, Context.MODE_PRIVATE), SERVER_SYNC_DEADLINE);
+        tickets.setServers(getServers());
+        scheduler = new SyncScheduler(new SyncScheduler.SyncTask() {
+            public boolean sync() throws Exception {
+                return refresh();
+            }
+        }, MIN_REFRESH_INTERVAL, MAX_REFRESH_INTERVAL);
         return true;
     }
 
+    /**
+     * Deletes the single ticket store used before servers got a store each.
+     * Runs once per install, not on every start.
+     */
+    private void removeLegacyStore() {
+        SharedPreferences state = getContext().getSharedPreferences(STATE_PREFERENCES, Context.MODE_PRIVATE);
+        if (state.getBoolean(LEGACY_STORE_REMOVED, false)) {
+            return;
+        }
+        getContext().deleteDatabase(TicketStore.LEGACY_DATABASE_NAME);
+        state.edit().putBoolean(LEGACY_STORE_REMOVED, true).commit();
+    }
+
     public Cursor query(Uri uri, String[] fields, String s, String[] strings1, String s1) {
+        if ("stats".equals(uri.getLastPathSegment())) {
+            return queryStats();
+        }
         if (fields == null || fields.length == 0) {
             fields = FIELDS_ARRAY;
         }
         Log.d(TAG, "* QUERY Called.");
 
-        Trac trac = new Trac(getContext(),"http://www.taveiranet.com/projects/mcs/login/rpc","smiff2","teste2");
-        
-//        trac.getSearchFilters();
-//        Log.d(TAG,trac.systemGetAPIVersion().toString());
-//        for(ComponentImpl component: trac.getAllComponents()){
-//        	Log.d(TAG,component.toString());
-//        }
-//        for(MilestoneImpl milestone: trac.getAllMilestones()){
-//        	Log.d(TAG,milestone.toString());
-//        }
-//        for(PriorityImpl priority: trac.getAllPriorities()){
-//        	Log.d(TAG,priority.toString());
-//        }
-//        for(ResolutionImpl resolution: trac.getAllResolutions()){
-//        	Log.d(TAG,resolution.toString());
-//        }
-//        for(SeverityImpl severity: trac.getAllSeverities()){
-//        	Log.d(TAG,severity.toString());
-//        }
-//        for(TypeImpl type: trac.getAllTypes()){
-//        	Log.d(TAG,type.toString());
-//        }
-//        for(VersionImpl version: trac.getAllVersions()){
-//        	Log.d(TAG,version.toString());
-//        }
-//        for(StatusImpl status: trac.getAllStatus()){
-//        	Log.d(TAG,status.toString());
-//        }
-        
 		SharedPreferences mPrefs = getContext().getSharedPreferences("tracplugin.prefs", Context.MODE_PRIVATE);
 		Map<String, ?> prefsKeys = mPrefs.getAll();
 		for(String key: prefsKeys.keySet()){
-			Log.d(TAG,"Key: " + key + " value: " + mPrefs.getBoolean(key, false));
+			Log.d(TAG,"Key: " + key + " value: " + (key.endsWith("password") ? "***" : prefsKeys.get(key)));
 		}
 		
-		MatrixCursor cursor = new MatrixCursor(fields);
-		try {
-
-			List<TicketImpl> queryResult = trac.query("max=0&owner=smiff&status!=closed");
-			
-			Collections.sort(queryResult, TicketImpl.getPriorityOrderComparator());
-
-	        for(TicketImpl ticket: 	queryResult){
-	        	Log.d(TAG,ticket.toString());
+		tickets.setServers(getServers());
+		
+		final String[] columns = fields;
+		final MatrixCursor cursor = new MatrixCursor(fields);
+		tickets.queryByPriority(STORE_PROJECTION, new TicketAggregator.RowHandler() {
+			public void handleRow(int index, TracServer server, Cursor ticket) {
+				long ticketId = ticket.getLong(0);
+				long id = ((long) index << SERVER_INDEX_SHIFT) | ticketId;
 	        	MatrixCursor.RowBuilder builder = cursor.newRow();
-				for (String field : fields) {
+				for (String field : columns) {
 					if (FIELD_ID.equals(field)) {
-						builder.add(ticket.getId());
+						builder.add(id);
 					} else if (FIELD_TITLE.equals(field)) {
-						builder.add(ticket.getSummary());
+						builder.add(ticket.getString(1));
 					} else if (FIELD_LABEL.equals(field)) {
-						builder.add(ticket.getPriority().getName());
+						builder.add(ticket.getString(2));
 					} else if (FIELD_TEXT.equals(field)) {
-						builder.add(ticket.getComponent().getName());
+						builder.add(ticket.getString(3));
 					} else if (FIELD_DATE.equals(field)) {
-						builder.add(ticket.getChangeTime().getTime().getTime());
+						builder.add(ticket.getLong(4));
 					} else if (FIELD_PRIORITY.equals(field)) {
-						int priority = 3;
-						String priorityString = ticket.getPriority().getName();						
-						if("blocker".equals(priorityString)){
-							priority = 1;
-						}else if("critical".equals(priorityString)){
-							priority = 2;
-						}else if("major".equals(priorityString)){
-							priority = 3;
-						}else if("minor".equals(priorityString)){
-							priority = 4;
-						}else if("trivial".equals(priorityString)){
-							priority = 5;
-						}
-						builder.add(100-priority);
+						builder.add(100-ticket.getInt(5));
 					} else if (FIELD_INTENT.equals(field)) {
-						Intent intent = new Intent(Intent.ACTION_VIEW);
-						//intent.setData(Uri.parse(messageUri));
-						builder.add(PluginUtils.encodeIntents(intent));
+						builder.add(intents.getViewIntent(id, server.getTicketUrl(ticketId)));
 					} else {
 						builder.add("");
 					}
 				}
-	        }
-
-		} catch (TracException e) {
-			e.printStackTrace();
-		}
+			}
+		});
 		
+		// Served from the store, the network is only touched by the scheduler
+		scheduler.start();
+		
+        return cursor;
+    }
+
+    /**
+     * Returns the JSON-RPC statistics recorded in this process.
+     *
+     * @throws SecurityException if the caller may not see them, see
+     *                           {@link #STATS_URI}
+     */
+    private Cursor queryStats() {
+        Context context = getContext();
+        boolean debuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        if (!debuggable
+                && context.checkCallingOrSelfPermission(PERMISSION_EDIT_TICKETS) != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Reading " + STATS_URI + " requires " + PERMISSION_EDIT_TICKETS);
+        }
+        List<RPCStatistics.Method> methods = RPCStatistics.getDefault().snapshot();
+        MatrixCursor cursor = new MatrixCursor(STATS_PROJECTION, methods.size());
+        long id = 0;
+        for (RPCStatistics.Method method : methods) {
+            StringBuilder histogram = new StringBuilder();
+            long[] counts = method.getHistogram();
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) {
+                    histogram.append(' ');
+                }
+                histogram.append(i < RPCStatistics.LATENCY_BUCKETS.length ? String.valueOf(RPCStatistics.LATENCY_BUCKETS[i]) : "inf")
+                        .append(':').append(counts[i]);
+            }
+            cursor.addRow(new Object[] {
+                id++,
+                method.getName(),
+                method.getCalls(),
+                method.getTotalLatency(),
+                method.getMaxLatency(),
+                method.getLatencyPercentile(50),
+                method.getLatencyPercentile(90),
+                method.getLatencyPercentile(99),
+                histogram.toString(),
+                method.getRequestBytes(),
+                method.getResponseBytes(),
+                method.getParseTime(),
+                method.getSessionErrors(JSONRPC2SessionException.NETWORK_EXCEPTION),
+                method.getSessionErrors(JSONRPC2SessionException.UNEXPECTED_CONTENT_TYPE),
+                method.getSessionErrors(JSONRPC2SessionException.BAD_RESPONSE),
+                method.getErrorResponses(),
+                method.getRetries(),
+                method.getRejected()
+            });
+        }
         return cursor;
     }
 
+    /**
+     * Makes the background refresh of the ticket store run now, if the
+     * provider has been created in this process.
+     *
+     * @return false if there is no provider to refresh
+     */
+    public static boolean requestRefresh() {
+        SyncScheduler current = scheduler;
+        if (current == null) {
+            return false;
+        }
+        current.requestSync();
+        current.start();
+        return true;
+    }
+
+    /**
+     * Returns the servers configured in the preferences, or the default
+     * server if there are none.
+     */
+    private List<TracServer> getServers() {
+		SharedPreferences prefs = getContext().getSharedPreferences("tracplugin.prefs", Context.MODE_PRIVATE);
+		List<TracServer> servers = TracServer.fromPreferences(prefs);
+		return servers.isEmpty() ? Collections.singletonList(DEFAULT_SERVER) : servers;
+    }
+
+    /**
+     * Refreshes the ticket stores of all servers and notifies SlideScreen
+     * if any changed.
+     *
+     * @return true if a store changed
+     */
+    private boolean refresh() {
+        Log.d(TAG, "* REFRESH Called.");
+
+        tickets.setServers(getServers());
+        boolean changed = tickets.sync();
+        if (changed) {
+            sendUpdatedNotification();
+        }
+        return changed;
+    }
+
     @Override
     public String getType(Uri uri) {
         return null;
     }
 
+    /**
+     * Returns the URI to {@link #insert} tickets of the server with the given
+     * index into, the bits above the ticket id in its item ids;
+     * {@link #CONTENT_URI} inserts into the first server.
+     */
+    public static Uri getServerUri(int index) {
+        return Uri.withAppendedPath(CONTENT_URI, Long.toString((long) index << SERVER_INDEX_SHIFT));
+    }
+
+    /**
+     * Creates a ticket. The URI is {@link #CONTENT_URI} or one of
+     * {@link #getServerUri}, picking the server; the values are the Trac
+     * fields of the ticket, including summary and description. The ticket
+     * is created with the next refresh.
+     */
     public Uri insert(Uri uri, ContentValues contentValues) {
-        return null;
+        int index = TicketAggregator.FIRST_SERVER;
+        String segment = uri.getLastPathSegment();
+        if (segment != null) {
+            try {
+                index = (int) (Long.parseLong(segment) >>> SERVER_INDEX_SHIFT);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        Map<String, String> attributes = toAttributes(contentValues);
+        attributes.remove(EditColumns.COMMENT);
+        attributes.remove(EditColumns.AUTHOR);
+        if (!tickets.enqueueCreate(index, attributes, null)) {
+            return null;
+        }
+        requestRefresh();
+        return CONTENT_URI;
     }
 
     public int delete(Uri uri, String s, String[] strings) {
         return -1;
     }
 
+    /**
+     * Edits a ticket. The last path segment is the SlideScreen item id, the
+     * values are the Trac fields to set, plus optionally
+     * {@link EditColumns#COMMENT}. The edit
+     * shows right away and is sent to the server with the next refresh.
+     */
     public int update(Uri uri, ContentValues contentValues, String s, String[] strings) {
-        return -1;
+        long id;
+        try {
+            id = Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        int index = (int) (id >>> SERVER_INDEX_SHIFT);
+        long ticketId = id & ((1L << SERVER_INDEX_SHIFT) - 1);
+        Map<String, String> attributes = toAttributes(contentValues);
+        String comment = attributes.remove(EditColumns.COMMENT);
+        attributes.remove(EditColumns.AUTHOR);
+        if (!tickets.enqueueUpdate(index, ticketId, comment, attributes, null)) {
+            return 0;
+        }
+        sendUpdatedNotification();
+        requestRefresh();
+        return 1;
+    }
+
+    private static Map<String, String> toAttributes(ContentValues contentValues) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        if (contentValues != null) {
+            for (Map.Entry<String, Object> value : contentValues.valueSet()) {
+                attributes.put(value.getKey(), value.getValue() == null ? null : value.getValue().toString());
+            }
+        }
+        return attributes;
     }
 
     public void sendUpdatedNotification() {
@@ -0,0 +1,199 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.Random;
+
+/**
+ * Runs a sync task in the background with an adaptive interval.
+ *
+ * <p>The interval starts at the minimum. A sync that changed something sets
+ * it back to the minimum; a sync that changed nothing, or failed, doubles it,
+ * up to the maximum. Every run time is spread by a random jitter so that many
+ * devices don't hit the server in lock step.
+ *
+ * <p>The scheduler only depends on its {@link Clock}, so its policy can be
+ * driven on a plain JVM by calling {@link #runIfDue()} directly instead of
+ * {@link #start() starting} the background thread.
+ */
+public class SyncScheduler {
+
+    /**
+     * Source of the current time.
+     */
+    public static interface Clock {
+        long currentTimeMillis();
+    }
+
+    /**
+     * The work done on every run.
+     */
+    public static interface SyncTask {
+        /**
+         * @return true if the synced data changed
+         */
+        boolean sync() throws Exception;
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Fraction of the interval by which a run time is moved at most, either
+     * way.
+     */
+    public static final double DEFAULT_JITTER = 0.1;
+
+    private final SyncTask task;
+    private final Clock clock;
+    private final Random random;
+    private final long minInterval;
+    private final long maxInterval;
+    private final double jitter;
+
+    private long interval;
+    private long nextRunTime;
+    private boolean syncing = false;
+    private Exception lastError = null;
+    private Thread thread = null;
+
+    public SyncScheduler(SyncTask task, long minInterval, long maxInterval) {
+        this(task, SYSTEM_CLOCK, new Random(), minInterval, maxInterval, DEFAULT_JITTER);
+    }
+
+    /**
+     * @param jitter fraction of the interval, between 0 and 1, by which a run
+     *               time is moved at most
+     */
+    public SyncScheduler(SyncTask task, Clock clock, Random random, long minInterval, long maxInterval, double jitter) {
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid sync interval range " + minInterval + "-" + maxInterval);
+        }
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("Invalid jitter " + jitter);
+        }
+        this.task = task;
+        this.clock = clock;
+        this.random = random;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.jitter = jitter;
+        this.interval = minInterval;
+        this.nextRunTime = clock.currentTimeMillis();
+    }
+
+    /**
+     * Returns the current interval, before jitter.
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns when the next sync is due.
+     */
+    public synchronized long getNextRunTime() {
+        return nextRunTime;
+    }
+
+    /**
+     * Returns the error of the last sync, or null if it succeeded.
+     */
+    public synchronized Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Makes the next sync due immediately.
+     */
+    public synchronized void requestSync() {
+        nextRunTime = clock.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Runs the sync task if it is due and no other run is in progress, then
+     * schedules the next run.
+     *
+     * @return true if the task ran
+     */
+    public boolean runIfDue() {
+        synchronized (this) {
+            if (syncing || clock.currentTimeMillis() < nextRunTime) {
+                return false;
+            }
+            syncing = true;
+        }
+
+        boolean changed = false;
+        Exception error = null;
+        try {
+            changed = task.sync();
+        } catch (Exception e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            syncing = false;
+            lastError = error;
+            if (changed) {
+                interval = minInterval;
+            } else {
+                interval = Math.min(maxInterval, interval * 2);
+            }
+            long spread = (long) (interval * jitter * (2 * random.nextDouble() - 1));
+            nextRunTime = clock.currentTimeMillis() + interval + spread;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Starts running the sync task on a background thread. Does nothing if
+     * already started.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop(Thread.currentThread());
+            }
+        }, "TracSync");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the background thread after the current run, if any.
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+            notifyAll();
+        }
+    }
+
+    private void loop(Thread self) {
+        while (true) {
+            synchronized (this) {
+                if (thread != self) {
+                    return;
+                }
+                long wait = nextRunTime - clock.currentTimeMillis();
+                if (wait > 0 || syncing) {
+                    try {
+                        wait(syncing ? 0 : wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            runIfDue();
+        }
+    }
+}
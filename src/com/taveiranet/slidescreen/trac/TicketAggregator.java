@@ -0,0 +1,433 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lustin.trac.xmlprc2.PriorityRanks;
+import org.lustin.trac.xmlprc2.Trac;
+import org.lustin.trac.xmlprc2.TracMetadata;
+import org.lustin.trac.xmlprc2.TracMetadataCache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.taveiranet.slidescreen.trac.TicketStore.TicketColumns;
+
+/**
+ * Keeps the tickets of several Trac servers, each in its own
+ * {@link TicketStore}.
+ *
+ * <p>{@link #sync()} syncs all servers concurrently on a bounded pool and
+ * gives each one a deadline, so a slow or dead server doesn't hold up the
+ * others. {@link #queryByPriority} merges the stores into one list in
+ * priority order. Edits made on the device wait in each server's
+ * {@link TicketUpdateQueue} and are sent at the start of the next sync.
+ */
+public class TicketAggregator {
+
+    private static final String TAG = TicketAggregator.class.getName();
+
+    /**
+     * Maximum number of servers synced at the same time. Servers beyond
+     * this wait for a free thread within the same deadline.
+     */
+    public static final int MAX_PARALLEL_SYNCS = 4;
+
+    /**
+     * Index passed to {@link #enqueueCreate} to pick the first configured
+     * server.
+     */
+    public static final int FIRST_SERVER = -1;
+
+    /**
+     * Prefix of the state keys holding each server's index, followed by
+     * {@link TracServer#getKey()}.
+     */
+    private static final String SERVER_INDEX_PREFIX = "serverIndex.";
+
+    /**
+     * State key of the index the next new server gets.
+     */
+    private static final String NEXT_SERVER_INDEX = "nextServerIndex";
+
+    /**
+     * Receives the merged rows of {@link #queryByPriority}.
+     */
+    public static interface RowHandler {
+        /**
+         * @param index  the index of the server, see {@link #getServerIndex}
+         * @param server the server the row belongs to
+         * @param row    the cursor, positioned on the row
+         */
+        void handleRow(int index, TracServer server, Cursor row);
+    }
+
+    /**
+     * A server with its client and store.
+     *
+     * <p>The store is only used between {@link #acquire()} and
+     * {@link #release()}, so a removed server's store is closed once the
+     * last user is done with it. At most one sync of a server runs at a
+     * time: a sync that missed its deadline can't be stopped, since a
+     * blocking HTTP read ignores interrupts, and the next one skips the
+     * server until it has finished.
+     */
+    private static class Source {
+        final int index;
+        final TracServer server;
+        final Trac trac;
+        final TicketStore store;
+        final TicketUpdateQueue updates;
+
+        private int users = 0;
+        private boolean syncing = false;
+        private boolean removed = false;
+
+        Source(Context context, int index, TracServer server) {
+            this.index = index;
+            this.server = server;
+            this.trac = new Trac(context, server.getRpcUrl(), server.getUsername(), server.getPassword());
+            this.store = new TicketStore(context, server.getKey());
+            this.updates = new TicketUpdateQueue(store);
+        }
+
+        /**
+         * @return false if the server was removed and its store must not be
+         *         used
+         */
+        synchronized boolean acquire() {
+            if (removed) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        synchronized void release() {
+            users--;
+            if (removed && users == 0) {
+                store.close();
+            }
+        }
+
+        /**
+         * Acquires the source for a sync.
+         *
+         * @return false if it was removed or a sync of it is still running
+         */
+        synchronized boolean beginSync() {
+            if (syncing || !acquire()) {
+                return false;
+            }
+            syncing = true;
+            return true;
+        }
+
+        synchronized void endSync() {
+            syncing = false;
+            release();
+        }
+
+        /**
+         * Closes the store now or, if it is in use, once it is released.
+         */
+        synchronized void remove() {
+            if (removed) {
+                return;
+            }
+            removed = true;
+            if (users == 0) {
+                store.close();
+            }
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences state;
+    private final long serverDeadline;
+    private final ExecutorService executor;
+
+    private volatile List<Source> sources = Collections.emptyList();
+
+    /**
+     * @param state          preferences the server indexes are kept in
+     * @param serverDeadline time in milliseconds a server sync may take
+     *                       before it is abandoned
+     */
+    public TicketAggregator(Context context, SharedPreferences state, long serverDeadline) {
+        this.context = context;
+        this.state = state;
+        this.serverDeadline = serverDeadline;
+        this.executor = Executors.newFixedThreadPool(MAX_PARALLEL_SYNCS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TracSync-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the servers to aggregate. Servers that stay configured keep their
+     * client and store; stores of removed servers are closed once no sync or
+     * query uses them anymore.
+     */
+    public synchronized void setServers(List<TracServer> servers) {
+        List<Source> current = sources;
+        List<Source> updated = new ArrayList<Source>(servers.size());
+        for (TracServer server : servers) {
+            Source source = null;
+            for (Source existing : current) {
+                if (existing.server.equals(server)) {
+                    source = existing;
+                    break;
+                }
+            }
+            updated.add(source != null ? source : new Source(context, getServerIndex(server), server));
+        }
+        for (Source existing : current) {
+            if (!updated.contains(existing)) {
+                existing.remove();
+            }
+        }
+        sources = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Returns the index of a server, which stays the same while the server
+     * is removed, added back or moved in the list. Indexes are given out in
+     * order of first use and never reused for another server.
+     */
+    public synchronized int getServerIndex(TracServer server) {
+        String key = SERVER_INDEX_PREFIX + server.getKey();
+        int index = state.getInt(key, -1);
+        if (index < 0) {
+            index = state.getInt(NEXT_SERVER_INDEX, 0);
+            state.edit().putInt(key, index).putInt(NEXT_SERVER_INDEX, index + 1).commit();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the configured server with the given index, or null.
+     */
+    private Source getSource(int index) {
+        List<Source> current = sources;
+        if (index == FIRST_SERVER) {
+            return current.isEmpty() ? null : current.get(0);
+        }
+        for (Source source : current) {
+            if (source.index == index) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    public List<TracServer> getServers() {
+        List<TracServer> servers = new ArrayList<TracServer>();
+        for (Source source : sources) {
+            servers.add(source.server);
+        }
+        return servers;
+    }
+
+    /**
+     * Syncs every server's store concurrently, sending the queued edits
+     * first. Servers that fail or miss the deadline are logged and skipped
+     * until the next sync; one that missed it is skipped until its sync has
+     * finished.
+     *
+     * @return true if any store changed
+     */
+    public boolean sync() {
+        final List<Source> current = sources;
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(current.size());
+        for (final Source source : current) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    if (!source.beginSync()) {
+                        Log.w(TAG, "Sync of " + source.server + " skipped, the previous one is still running or it was removed");
+                        return Boolean.FALSE;
+                    }
+                    try {
+                        boolean flushed = source.updates.flush(source.trac);
+                        return TicketSync.sync(source.trac, source.store, source.server.getQuery()) | flushed;
+                    } finally {
+                        source.endSync();
+                    }
+                }
+            });
+        }
+
+        List<Future<Boolean>> results;
+        try {
+            results = executor.invokeAll(tasks, serverDeadline, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < results.size(); i++) {
+            Source source = current.get(i);
+            TracServer server = source.server;
+            try {
+                changed |= results.get(i).get().booleanValue();
+            } catch (CancellationException e) {
+                Log.w(TAG, "Sync of " + server + " missed its deadline");
+            } catch (ExecutionException e) {
+                if (source.trac.isCircuitOpen()) {
+                    // Failed fast, the stored tickets are shown until it is back
+                    Log.w(TAG, "Sync of " + server + " skipped: " + e.getCause().getMessage());
+                } else {
+                    Log.e(TAG, "Sync of " + server + " failed: " + e.getCause(), e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Queues an update of a stored ticket, shown in the store right away and
+     * sent with the next sync.
+     *
+     * @param index the index of the server, see {@link #getServerIndex}
+     * @return false if no server has that index
+     */
+    public boolean enqueueUpdate(int index, long ticketId, String comment, Map<String, String> attributes,
+            String author) {
+        Source source = getSource(index);
+        if (source == null || !source.acquire()) {
+            return false;
+        }
+        try {
+            source.updates.enqueueUpdate(ticketId, comment, attributes, author, cachedPriorityRanks(source.trac));
+        } finally {
+            source.release();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the priority order of a server without going to the network.
+     */
+    private static PriorityRanks cachedPriorityRanks(Trac trac) {
+        TracMetadata metadata = TracMetadataCache.getShared(trac).peek();
+        return metadata == null ? PriorityRanks.DEFAULT : metadata.getPriorityRanks();
+    }
+
+    /**
+     * Queues the creation of a ticket, sent with the next sync.
+     *
+     * @param index the index of the server, see {@link #getServerIndex}, or
+     *              {@link #FIRST_SERVER}
+     * @return false if no server has that index
+     */
+    public boolean enqueueCreate(int index, Map<String, String> attributes, String author) {
+        Source source = getSource(index);
+        if (source == null || !source.acquire()) {
+            return false;
+        }
+        try {
+            source.updates.enqueueCreate(attributes, author);
+        } finally {
+            source.release();
+        }
+        return true;
+    }
+
+    /**
+     * Passes the stored tickets of all servers to the handler, by priority
+     * rank and then most recently changed first, as if they came from one
+     * store. The columns must include {@link TicketColumns#PRIORITY_RANK}
+     * and {@link TicketColumns#CHANGE_TIME}.
+     */
+    public void queryByPriority(String[] columns, RowHandler handler) {
+        List<Source> current = sources;
+        Cursor[] cursors = new Cursor[current.size()];
+        boolean[] hasRow = new boolean[cursors.length];
+        boolean[] acquired = new boolean[cursors.length];
+        try {
+            for (int i = 0; i < cursors.length; i++) {
+                acquired[i] = current.get(i).acquire();
+                if (!acquired[i]) {
+                    // Removed meanwhile, its rows are not shown anymore
+                    cursors[i] = new MatrixCursor(columns, 0);
+                    continue;
+                }
+                cursors[i] = current.get(i).store.queryByPriority(columns);
+                hasRow[i] = cursors[i].moveToNext();
+            }
+            if (cursors.length == 0) {
+                return;
+            }
+            int rankColumn = cursors[0].getColumnIndex(TicketColumns.PRIORITY_RANK);
+            int changeTimeColumn = cursors[0].getColumnIndex(TicketColumns.CHANGE_TIME);
+
+            while (true) {
+                // Few servers, so a linear pick of the next row is enough
+                int next = -1;
+                for (int i = 0; i < cursors.length; i++) {
+                    if (hasRow[i] && (next < 0 || isBefore(cursors[i], cursors[next], rankColumn, changeTimeColumn))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                handler.handleRow(current.get(next).index, current.get(next).server, cursors[next]);
+                hasRow[next] = cursors[next].moveToNext();
+            }
+        } finally {
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] != null) {
+                    cursors[i].close();
+                }
+                if (acquired[i]) {
+                    current.get(i).release();
+                }
+            }
+        }
+    }
+
+    private static boolean isBefore(Cursor a, Cursor b, int rankColumn, int changeTimeColumn) {
+        int rankA = a.getInt(rankColumn);
+        int rankB = b.getInt(rankColumn);
+        if (rankA != rankB) {
+            return rankA < rankB;
+        }
+        return a.getLong(changeTimeColumn) > b.getLong(changeTimeColumn);
+    }
+
+    /**
+     * Stops the sync threads and closes the stores, each once it is no
+     * longer in use.
+     */
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+        for (Source source : sources) {
+            source.remove();
+        }
+        sources = Collections.emptyList();
+    }
+}
@@ -0,0 +1,476 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lustin.trac.xmlprc2.ComponentImpl;
+import org.lustin.trac.xmlprc2.MilestoneImpl;
+import org.lustin.trac.xmlprc2.PriorityImpl;
+import org.lustin.trac.xmlprc2.PriorityRanks;
+import org.lustin.trac.xmlprc2.ResolutionImpl;
+import org.lustin.trac.xmlprc2.StatusImpl;
+import org.lustin.trac.xmlprc2.TicketImpl;
+import org.lustin.trac.xmlprc2.TicketPropertyImpl;
+import org.lustin.trac.xmlprc2.TypeImpl;
+import org.lustin.trac.xmlprc2.VersionImpl;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+
+/**
+ * Local SQLite copy of the tickets shown in SlideScreen, so that
+ * {@link SlideTracContentProvider} can answer queries without going to the
+ * network. Tickets are keyed by their Trac id, so every server gets its own
+ * store, see {@link #getDatabaseName(String)}.
+ */
+public class TicketStore extends SQLiteOpenHelper {
+
+    /**
+     * The single store used before servers got a store each.
+     */
+    public static final String LEGACY_DATABASE_NAME = "tickets.db";
+
+    /**
+     * Version 2: times are stored as UTC epoch millis.
+     * Version 3: Trac's change token is kept as sent, the pending update
+     * queue is added.
+     */
+    private static final int DATABASE_VERSION = 3;
+
+    public static final String TABLE_TICKETS = "tickets";
+
+    public static interface TicketColumns extends BaseColumns {
+        String SUMMARY = "summary";
+        String KEYWORDS = "keywords";
+        String STATUS = "status";
+        String RESOLUTION = "resolution";
+        String TYPE = "type";
+        String VERSION = "version";
+        String MILESTONE = "milestone";
+        String REPORTER = "reporter";
+        String PRIORITY = "priority";
+        String COMPONENT = "component";
+        String DESCRIPTION = "description";
+        String OWNER = "owner";
+        String CC = "cc";
+
+        /**
+         * The number of milliseconds since Jan. 1, 1970, midnight GMT.
+         *
+         * <P>Type: INTEGER (long)</P>
+         */
+        String TIME = "time";
+
+        /**
+         * The number of milliseconds since Jan. 1, 1970, midnight GMT.
+         *
+         * <P>Type: INTEGER (long)</P>
+         */
+        String CHANGE_TIME = "changetime";
+
+        /**
+         * Trac's change token, as milliseconds since Jan. 1, 1970, midnight GMT.
+         *
+         * <P>Type: INTEGER (long)</P>
+         */
+        String TS = "ts";
+
+        /**
+         * Trac's change token exactly as the server sent it, see
+         * {@link TicketImpl#getChangeToken()}.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String CHANGE_TOKEN = "change_token";
+
+        /**
+         * Sort position of the priority, lowest first.
+         *
+         * <P>Type: INTEGER</P>
+         */
+        String PRIORITY_RANK = "priority_rank";
+    }
+
+    /**
+     * All ticket columns, in the order they are bound by {@link #putAll}.
+     */
+    public static final String[] ALL_COLUMNS = new String[] {
+        TicketColumns._ID,
+        TicketColumns.SUMMARY,
+        TicketColumns.KEYWORDS,
+        TicketColumns.STATUS,
+        TicketColumns.RESOLUTION,
+        TicketColumns.TYPE,
+        TicketColumns.VERSION,
+        TicketColumns.MILESTONE,
+        TicketColumns.REPORTER,
+        TicketColumns.PRIORITY,
+        TicketColumns.COMPONENT,
+        TicketColumns.DESCRIPTION,
+        TicketColumns.OWNER,
+        TicketColumns.CC,
+        TicketColumns.TIME,
+        TicketColumns.CHANGE_TIME,
+        TicketColumns.TS,
+        TicketColumns.PRIORITY_RANK,
+        TicketColumns.CHANGE_TOKEN
+    };
+
+    /**
+     * Ticket fields that are stored under their Trac name and can be edited
+     * locally.
+     */
+    private static final Set<String> LOCAL_FIELDS = new HashSet<String>(Arrays.asList(
+        TicketColumns.SUMMARY,
+        TicketColumns.KEYWORDS,
+        TicketColumns.STATUS,
+        TicketColumns.RESOLUTION,
+        TicketColumns.TYPE,
+        TicketColumns.VERSION,
+        TicketColumns.MILESTONE,
+        TicketColumns.REPORTER,
+        TicketColumns.PRIORITY,
+        TicketColumns.COMPONENT,
+        TicketColumns.DESCRIPTION,
+        TicketColumns.OWNER,
+        TicketColumns.CC
+    ));
+
+    /**
+     * Order of the SlideScreen list; served by the priority index.
+     */
+    public static final String PRIORITY_ORDER = TicketColumns.PRIORITY_RANK + ", " + TicketColumns.CHANGE_TIME + " DESC";
+
+    /**
+     * @param serverKey identifies the server the store holds tickets of
+     */
+    public TicketStore(Context context, String serverKey) {
+        super(context, getDatabaseName(serverKey), null, DATABASE_VERSION);
+    }
+
+    /**
+     * Returns the database file name of the store of a server.
+     */
+    public static String getDatabaseName(String serverKey) {
+        return "tickets-" + serverKey + ".db";
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        createTicketsTable(db);
+        TicketUpdateQueue.createTable(db);
+    }
+
+    private static void createTicketsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_TICKETS + " ("
+                + TicketColumns._ID + " INTEGER PRIMARY KEY,"
+                + TicketColumns.SUMMARY + " TEXT,"
+                + TicketColumns.KEYWORDS + " TEXT,"
+                + TicketColumns.STATUS + " TEXT,"
+                + TicketColumns.RESOLUTION + " TEXT,"
+                + TicketColumns.TYPE + " TEXT,"
+                + TicketColumns.VERSION + " TEXT,"
+                + TicketColumns.MILESTONE + " TEXT,"
+                + TicketColumns.REPORTER + " TEXT,"
+                + TicketColumns.PRIORITY + " TEXT,"
+                + TicketColumns.COMPONENT + " TEXT,"
+                + TicketColumns.DESCRIPTION + " TEXT,"
+                + TicketColumns.OWNER + " TEXT,"
+                + TicketColumns.CC + " TEXT,"
+                + TicketColumns.TIME + " INTEGER,"
+                + TicketColumns.CHANGE_TIME + " INTEGER,"
+                + TicketColumns.TS + " INTEGER,"
+                + TicketColumns.PRIORITY_RANK + " INTEGER,"
+                + TicketColumns.CHANGE_TOKEN + " TEXT"
+                + ");");
+        db.execSQL("CREATE INDEX " + TABLE_TICKETS + "_priority ON " + TABLE_TICKETS
+                + " (" + TicketColumns.PRIORITY_RANK + ", " + TicketColumns.CHANGE_TIME + " DESC);");
+        db.execSQL("CREATE INDEX " + TABLE_TICKETS + "_changetime ON " + TABLE_TICKETS
+                + " (" + TicketColumns.CHANGE_TIME + ");");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The tickets are only a cache, the next refresh fills them again.
+        // Pending updates are the user's edits and are kept.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TICKETS);
+        createTicketsTable(db);
+        TicketUpdateQueue.createTable(db);
+    }
+
+    /**
+     * Returns all stored tickets in SlideScreen order: by priority, then
+     * most recently changed first. The caller must close the cursor.
+     */
+    public Cursor queryByPriority(String[] columns) {
+        return getReadableDatabase().query(TABLE_TICKETS, columns, null, null, null, null, PRIORITY_ORDER);
+    }
+
+    /**
+     * Returns all stored tickets in SlideScreen order.
+     */
+    public List<TicketImpl> getTickets() {
+        List<TicketImpl> tickets = new ArrayList<TicketImpl>();
+        Cursor cursor = queryByPriority(ALL_COLUMNS);
+        try {
+            while (cursor.moveToNext()) {
+                tickets.add(readTicket(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tickets;
+    }
+
+    /**
+     * Replaces the stored tickets with the given ones in one transaction.
+     */
+    public void replaceAll(List<TicketImpl> tickets) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_TICKETS, null, null);
+            putAll(db, tickets);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Stores the given tickets, replacing stored tickets with the same id, and
+     * removes the tickets with the given ids, in one transaction.
+     */
+    public void update(List<TicketImpl> tickets, List<Long> removedIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            putAll(db, tickets);
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_TICKETS + " WHERE " + TicketColumns._ID + " = ?");
+            try {
+                for (Long id : removedIds) {
+                    delete.bindLong(1, id);
+                    delete.execute();
+                }
+            } finally {
+                delete.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Re-ranks the stored tickets after the server's priority order changed,
+     * in one transaction.
+     *
+     * @return the number of tickets whose rank changed
+     */
+    public int updatePriorityRanks(PriorityRanks ranks) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        String[] known = new String[ranks.getRanks().size() + 1];
+        StringBuilder unknown = new StringBuilder("(" + TicketColumns.PRIORITY + " IS NULL OR "
+                + TicketColumns.PRIORITY + " NOT IN (");
+        int updated = 0;
+        int n = 0;
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Integer> rank : ranks.getRanks().entrySet()) {
+                values.put(TicketColumns.PRIORITY_RANK, rank.getValue());
+                updated += db.update(TABLE_TICKETS, values,
+                        TicketColumns.PRIORITY + " = ? AND " + TicketColumns.PRIORITY_RANK + " <> ?",
+                        new String[] { rank.getKey(), rank.getValue().toString() });
+                unknown.append(n == 0 ? "?" : ",?");
+                known[n++] = rank.getKey();
+            }
+            unknown.append(")) AND ").append(TicketColumns.PRIORITY_RANK).append(" <> ?");
+            known[n] = Integer.toString(ranks.getUnknownRank());
+            values.put(TicketColumns.PRIORITY_RANK, ranks.getUnknownRank());
+            updated += db.update(TABLE_TICKETS, values, unknown.toString(), known);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return updated;
+    }
+
+    /**
+     * Returns the Trac change token ({@code _ts}) of every stored ticket, by
+     * ticket id. Tickets without a token map to -1.
+     */
+    public Map<Long, Long> getChangeTokens() {
+        Map<Long, Long> tokens = new HashMap<Long, Long>();
+        Cursor cursor = getReadableDatabase().query(TABLE_TICKETS,
+                new String[] { TicketColumns._ID, TicketColumns.TS }, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                tokens.put(cursor.getLong(0), cursor.isNull(1) ? -1L : cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the change token of a stored ticket as the server sent it, or
+     * null if the ticket is not stored or has none.
+     */
+    public String getChangeToken(long id) {
+        Cursor cursor = getReadableDatabase().query(TABLE_TICKETS, new String[] { TicketColumns.CHANGE_TOKEN },
+                TicketColumns._ID + " = ?", new String[] { Long.toString(id) }, null, null, null);
+        try {
+            return cursor.moveToNext() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Shows an edit in the stored ticket before the server has it. Only the
+     * given fields change, the change times and tokens stay those of the
+     * server, so the next sync still notices changes made by others.
+     *
+     * @return false if the ticket is not stored
+     */
+    boolean applyLocally(SQLiteDatabase db, long id, Map<String, String> attributes, PriorityRanks ranks) {
+        ContentValues values = new ContentValues();
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            String field = attribute.getKey();
+            if (LOCAL_FIELDS.contains(field)) {
+                values.put(field, attribute.getValue());
+            }
+        }
+        if (attributes.containsKey(TicketColumns.PRIORITY)) {
+            values.put(TicketColumns.PRIORITY_RANK, ranks.getRank(attributes.get(TicketColumns.PRIORITY)));
+        }
+        if (values.size() == 0) {
+            return false;
+        }
+        return db.update(TABLE_TICKETS, values, TicketColumns._ID + " = ?", new String[] { Long.toString(id) }) > 0;
+    }
+
+    /**
+     * Returns the most recent change time of the stored tickets, or -1 if the
+     * store is empty.
+     */
+    public long getLatestChangeTime() {
+        Cursor cursor = getReadableDatabase().query(TABLE_TICKETS,
+                new String[] { "MAX(" + TicketColumns.CHANGE_TIME + ")" }, null, null, null, null, null);
+        try {
+            if (cursor.moveToNext() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void putAll(SQLiteDatabase db, List<TicketImpl> tickets) {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(TABLE_TICKETS).append(" (");
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "" : ",").append(ALL_COLUMNS[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+
+        SQLiteStatement insert = db.compileStatement(sql.toString());
+        try {
+            for (TicketImpl ticket : tickets) {
+                insert.clearBindings();
+                int i = 1;
+                insert.bindLong(i++, ticket.getId());
+                bind(insert, i++, ticket.getSummary());
+                bind(insert, i++, ticket.getKeywords());
+                bind(insert, i++, ticket.getStatus());
+                bind(insert, i++, ticket.getResolution());
+                bind(insert, i++, ticket.getType());
+                bind(insert, i++, ticket.getVersion());
+                bind(insert, i++, ticket.getMilestone());
+                bind(insert, i++, ticket.getReporter());
+                bind(insert, i++, ticket.getPriority());
+                bind(insert, i++, ticket.getComponent());
+                bind(insert, i++, ticket.getDescription());
+                bind(insert, i++, ticket.getOwner());
+                bind(insert, i++, ticket.getCc());
+                bindTime(insert, i++, ticket.getTimeMillis());
+                bindTime(insert, i++, ticket.getChangeTimeMillis());
+                bindTime(insert, i++, ticket.getTsMillis());
+                insert.bindLong(i++, ticket.getPriorityRank());
+                bind(insert, i++, ticket.getChangeToken());
+                insert.execute();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, TicketPropertyImpl value) {
+        bind(statement, index, value == null ? null : value.getName());
+    }
+
+    private static void bindTime(SQLiteStatement statement, int index, long value) {
+        if (value == TicketImpl.NO_TIME) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    /**
+     * Reads the ticket at the current position of a cursor over
+     * {@link #ALL_COLUMNS}.
+     */
+    public static TicketImpl readTicket(Cursor cursor) {
+        TicketImpl ticket = new TicketImpl();
+        int i = 0;
+        ticket.setId(cursor.getLong(i++));
+        ticket.setSummary(cursor.getString(i++));
+        ticket.setKeywords(cursor.getString(i++));
+        ticket.setStatus(StatusImpl.valueOf(cursor.getString(i++)));
+        ticket.setResolution(ResolutionImpl.valueOf(cursor.getString(i++)));
+        ticket.setType(TypeImpl.valueOf(cursor.getString(i++)));
+        ticket.setVersion(VersionImpl.valueOf(cursor.getString(i++)));
+        ticket.setMilestone(MilestoneImpl.valueOf(cursor.getString(i++)));
+        ticket.setReporter(cursor.getString(i++));
+        ticket.setPriority(PriorityImpl.valueOf(cursor.getString(i++)));
+        ticket.setComponent(ComponentImpl.valueOf(cursor.getString(i++)));
+        ticket.setDescription(cursor.getString(i++));
+        ticket.setOwner(cursor.getString(i++));
+        ticket.setCC(cursor.getString(i++));
+        ticket.setTimeMillis(readTime(cursor, i++));
+        ticket.setChangeTimeMillis(readTime(cursor, i++));
+        ticket.setTSMillis(readTime(cursor, i++));
+        ticket.setPriorityRank(cursor.getInt(i++));
+        ticket.setChangeToken(cursor.getString(i++));
+        return ticket;
+    }
+
+    private static long readTime(Cursor cursor, int index) {
+        return cursor.isNull(index) ? TicketImpl.NO_TIME : cursor.getLong(index);
+    }
+}
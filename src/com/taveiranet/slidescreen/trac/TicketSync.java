@@ -0,0 +1,90 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.lustin.trac.xmlprc2.PriorityRanks;
+import org.lustin.trac.xmlprc2.TicketImpl;
+import org.lustin.trac.xmlprc2.Trac;
+import org.lustin.trac.xmlprc2.TracException;
+
+import android.util.Log;
+
+/**
+ * Brings a {@link TicketStore} up to date with the tickets matching a Trac
+ * query, fetching only what changed since the last sync.
+ *
+ * <p>The sync watermark is the latest change time in the store, so it is
+ * always in the server's clock. A sync asks Trac for the ids matching the
+ * query and for the ids changed since the watermark, then fetches the
+ * tickets that are new to the store or changed. Of those, only tickets whose
+ * {@code _ts} change token differs from the stored one are written. Stored
+ * tickets that no longer match the query are removed. Stored tickets are
+ * re-ranked when the server's priority order changed.
+ */
+public class TicketSync {
+
+    private static final String TAG = TicketSync.class.getName();
+
+    private TicketSync() {
+    }
+
+    /**
+     * Syncs the store with the given query.
+     *
+     * @return true if the store changed
+     */
+    public static boolean sync(Trac trac, TicketStore store, String query) throws TracException {
+        List<Long> matching = trac.queryIds(query);
+        Map<Long, Long> stored = store.getChangeTokens();
+
+        int reranked = 0;
+        PriorityRanks ranks = trac.getPriorityRanks();
+        if (ranks != PriorityRanks.DEFAULT) {
+            // DEFAULT is only returned when the server couldn't be asked
+            reranked = store.updatePriorityRanks(ranks);
+        }
+
+        Set<Long> changed = null;
+        long watermark = store.getLatestChangeTime();
+        if (watermark >= 0) {
+            changed = new HashSet<Long>(trac.getRecentChanges(watermark));
+        }
+
+        List<Long> fetch = new ArrayList<Long>();
+        for (Long id : matching) {
+            if (changed == null || changed.contains(id) || !stored.containsKey(id)) {
+                fetch.add(id);
+            }
+        }
+
+        List<Long> removed = new ArrayList<Long>();
+        Set<Long> matchingSet = new HashSet<Long>(matching);
+        for (Long id : stored.keySet()) {
+            if (!matchingSet.contains(id)) {
+                removed.add(id);
+            }
+        }
+
+        List<TicketImpl> modified = new ArrayList<TicketImpl>();
+        for (TicketImpl ticket : trac.getTickets(fetch)) {
+            Long storedToken = stored.get(ticket.getId());
+            long token = ticket.getTsMillis() == TicketImpl.NO_TIME ? -1 : ticket.getTsMillis();
+            if (storedToken == null || storedToken.longValue() != token) {
+                modified.add(ticket);
+            }
+        }
+
+        Log.d(TAG, "Sync: " + matching.size() + " matching, " + fetch.size() + " fetched, "
+                + modified.size() + " modified, " + removed.size() + " removed, " + reranked + " reranked");
+
+        if (modified.isEmpty() && removed.isEmpty()) {
+            return reranked > 0;
+        }
+        store.update(modified, removed);
+        return true;
+    }
+}
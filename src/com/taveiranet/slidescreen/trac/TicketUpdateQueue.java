@@ -0,0 +1,447 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.lustin.trac.xmlprc2.PriorityRanks;
+import org.lustin.trac.xmlprc2.TicketImpl;
+import org.lustin.trac.xmlprc2.TicketUpdate;
+import org.lustin.trac.xmlprc2.Trac;
+import org.lustin.trac.xmlprc2.TracException;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+/**
+ * Ticket edits made on the device that the server doesn't have yet, kept in
+ * the {@link TicketStore} of the server so they survive restarts and times
+ * without network.
+ *
+ * <p>An edit shows in the store right away. Successive edits of the same
+ * ticket are coalesced into one update while they wait. {@link #flush}
+ * sends everything waiting in batched system.multicall calls; each update
+ * carries the change token of the ticket it was based on, so an edit made
+ * against an outdated ticket is refused by Trac and kept as a conflict
+ * instead of overwriting someone else's change.
+ */
+public class TicketUpdateQueue {
+
+    private static final String TAG = TicketUpdateQueue.class.getName();
+
+    public static final String TABLE_PENDING_UPDATES = "pending_updates";
+
+    /**
+     * Waiting to be sent.
+     */
+    public static final int STATE_PENDING = 0;
+
+    /**
+     * Refused because the ticket changed on the server after the edit was
+     * based on it; kept until retried or discarded.
+     */
+    public static final int STATE_CONFLICT = 1;
+
+    /**
+     * Refused by the server for another reason, e.g. a missing permission.
+     */
+    public static final int STATE_FAILED = 2;
+
+    public static interface PendingColumns extends BaseColumns {
+        /**
+         * The ticket to update, or {@link TicketUpdate#NEW_TICKET} to create
+         * one.
+         *
+         * <P>Type: INTEGER (long)</P>
+         */
+        String TICKET_ID = "ticket_id";
+
+        /**
+         * <P>Type: TEXT</P>
+         */
+        String COMMENT = "comment";
+
+        /**
+         * The ticket fields to set, as a JSON object.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String ATTRIBUTES = "attributes";
+
+        /**
+         * The change token of the ticket the edit was based on.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String CHANGE_TOKEN = "change_token";
+
+        /**
+         * <P>Type: TEXT</P>
+         */
+        String AUTHOR = "author";
+
+        /**
+         * The number of milliseconds since Jan. 1, 1970, midnight GMT.
+         *
+         * <P>Type: INTEGER (long)</P>
+         */
+        String CREATED = "created";
+
+        /**
+         * One of {@link #STATE_PENDING}, {@link #STATE_CONFLICT} or
+         * {@link #STATE_FAILED}.
+         *
+         * <P>Type: INTEGER</P>
+         */
+        String STATE = "state";
+
+        /**
+         * Why the server refused the update.
+         *
+         * <P>Type: TEXT</P>
+         */
+        String ERROR = "error";
+    }
+
+    private static final String[] PENDING_PROJECTION = new String[] {
+        PendingColumns._ID,
+        PendingColumns.TICKET_ID,
+        PendingColumns.COMMENT,
+        PendingColumns.ATTRIBUTES,
+        PendingColumns.CHANGE_TOKEN,
+        PendingColumns.AUTHOR
+    };
+
+    private final TicketStore store;
+
+    /**
+     * Rows being sent by {@link #flush}; new edits are not coalesced into
+     * them. Only added to in a transaction on the store, so an edit merged
+     * by {@link #enqueueUpdate} is either sent or kept.
+     */
+    private final Set<Long> inFlight = new HashSet<Long>();
+
+    public TicketUpdateQueue(TicketStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Creates the table of the queue unless it exists; called by
+     * {@link TicketStore} on creation and on upgrades.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_PENDING_UPDATES + " ("
+                + PendingColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + PendingColumns.TICKET_ID + " INTEGER,"
+                + PendingColumns.COMMENT + " TEXT,"
+                + PendingColumns.ATTRIBUTES + " TEXT,"
+                + PendingColumns.CHANGE_TOKEN + " TEXT,"
+                + PendingColumns.AUTHOR + " TEXT,"
+                + PendingColumns.CREATED + " INTEGER,"
+                + PendingColumns.STATE + " INTEGER,"
+                + PendingColumns.ERROR + " TEXT"
+                + ");");
+    }
+
+    /**
+     * Queues an update of a ticket and shows it in the store. If an update
+     * of the ticket by the same author is still waiting, the edit is merged
+     * into it: later field values win and comments are joined.
+     *
+     * @param comment    the comment to add, or null
+     * @param attributes the ticket fields to set
+     * @param author     the user to record as making the change, or null
+     *                   for the authenticated user
+     * @param ranks      the priority order of the server
+     */
+    public void enqueueUpdate(long ticketId, String comment, Map<String, String> attributes, String author,
+            PriorityRanks ranks) {
+        SQLiteDatabase db = store.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_PENDING_UPDATES, PENDING_PROJECTION,
+                    PendingColumns.TICKET_ID + " = ? AND " + PendingColumns.STATE + " = " + STATE_PENDING,
+                    new String[] { Long.toString(ticketId) }, null, null, PendingColumns._ID + " DESC");
+            long rowId = -1;
+            String pendingComment = null;
+            Map<String, String> merged = new LinkedHashMap<String, String>();
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    if (!isInFlight(id) && equal(author, cursor.getString(5))) {
+                        rowId = id;
+                        pendingComment = cursor.getString(2);
+                        merged.putAll(parseAttributes(cursor.getString(3)));
+                        break;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            merged.putAll(attributes);
+
+            ContentValues values = new ContentValues();
+            values.put(PendingColumns.COMMENT, joinComments(pendingComment, comment));
+            values.put(PendingColumns.ATTRIBUTES, JSONObject.toJSONString(merged));
+            if (rowId >= 0) {
+                // Keeps the change token of the first edit: the server must
+                // still be at the version that edit was made against
+                db.update(TABLE_PENDING_UPDATES, values, PendingColumns._ID + " = ?",
+                        new String[] { Long.toString(rowId) });
+            } else {
+                values.put(PendingColumns.TICKET_ID, ticketId);
+                values.put(PendingColumns.CHANGE_TOKEN, store.getChangeToken(ticketId));
+                values.put(PendingColumns.AUTHOR, author);
+                values.put(PendingColumns.CREATED, System.currentTimeMillis());
+                values.put(PendingColumns.STATE, STATE_PENDING);
+                db.insert(TABLE_PENDING_UPDATES, null, values);
+            }
+            store.applyLocally(db, ticketId, attributes, ranks);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Queues the creation of a ticket. The ticket shows in the store once
+     * the server has created it and it matches the query of the server.
+     *
+     * @param attributes the ticket fields, including summary and description
+     * @param author     the reporter, or null for the authenticated user
+     */
+    public void enqueueCreate(Map<String, String> attributes, String author) {
+        ContentValues values = new ContentValues();
+        values.put(PendingColumns.TICKET_ID, TicketUpdate.NEW_TICKET);
+        values.put(PendingColumns.COMMENT, "");
+        values.put(PendingColumns.ATTRIBUTES, JSONObject.toJSONString(attributes));
+        values.put(PendingColumns.AUTHOR, author);
+        values.put(PendingColumns.CREATED, System.currentTimeMillis());
+        values.put(PendingColumns.STATE, STATE_PENDING);
+        store.getWritableDatabase().insert(TABLE_PENDING_UPDATES, null, values);
+    }
+
+    /**
+     * Returns the number of queued updates in the given state.
+     */
+    public int count(int state) {
+        Cursor cursor = store.getReadableDatabase().query(TABLE_PENDING_UPDATES, new String[] { "COUNT(*)" },
+                PendingColumns.STATE + " = " + state, null, null, null, null);
+        try {
+            return cursor.moveToNext() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Sends all waiting updates to the server. Updates the server applied
+     * leave the queue and the store gets the ticket as the server returned
+     * it. Refused updates stay in the queue as conflicts or failures, and
+     * their ticket is dropped from the store so the next sync fetches the
+     * server's version.
+     *
+     * @return true if the store changed
+     * @throws TracException if the server couldn't be reached; the updates
+     *                       that weren't answered stay waiting
+     */
+    public boolean flush(Trac trac) throws TracException {
+        List<Long> rowIds = new ArrayList<Long>();
+        List<TicketUpdate> updates = new ArrayList<TicketUpdate>();
+        // Reading and marking the rows in one transaction keeps enqueueUpdate
+        // from merging an edit into a row after it was read here
+        SQLiteDatabase db = store.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_PENDING_UPDATES, PENDING_PROJECTION,
+                    PendingColumns.STATE + " = " + STATE_PENDING, null, null, null, PendingColumns._ID);
+            try {
+                synchronized (inFlight) {
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(0);
+                        if (!inFlight.add(id)) {
+                            // Being sent by another flush
+                            continue;
+                        }
+                        TicketUpdate update = new TicketUpdate();
+                        update.setId(cursor.getLong(1));
+                        update.setComment(cursor.getString(2));
+                        update.setAttributes(parseAttributes(cursor.getString(3)));
+                        update.setChangeToken(cursor.getString(4));
+                        update.setAuthor(cursor.getString(5));
+                        rowIds.add(id);
+                        updates.add(update);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (updates.isEmpty()) {
+            return false;
+        }
+
+        try {
+            trac.sendUpdates(updates);
+        } finally {
+            try {
+                // Also after a failed multicall, earlier ones have their outcome
+                applyOutcomes(rowIds, updates, trac);
+            } finally {
+                // Released after the outcomes, so no edit merges into a deleted row
+                synchronized (inFlight) {
+                    inFlight.removeAll(rowIds);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void applyOutcomes(List<Long> rowIds, List<TicketUpdate> updates, Trac trac) {
+        SQLiteDatabase db = store.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < updates.size(); i++) {
+                TicketUpdate update = updates.get(i);
+                if (!update.isSent()) {
+                    continue;
+                }
+                String[] row = new String[] { rowIds.get(i).toString() };
+                if (update.getError() == null) {
+                    db.delete(TABLE_PENDING_UPDATES, PendingColumns._ID + " = ?", row);
+                    TicketImpl ticket = update.getTicket();
+                    if (ticket != null) {
+                        store.update(Collections.singletonList(ticket), Collections.<Long> emptyList());
+                        rebasePending(db, ticket, trac);
+                    }
+                } else {
+                    Log.w(TAG, "Update of ticket " + update.getId() + " refused: " + update.getError().getMessage());
+                    ContentValues values = new ContentValues();
+                    values.put(PendingColumns.STATE, update.isConflict() ? STATE_CONFLICT : STATE_FAILED);
+                    values.put(PendingColumns.ERROR, update.getError().getMessage());
+                    db.update(TABLE_PENDING_UPDATES, values, PendingColumns._ID + " = ?", row);
+                    if (update.getId() != TicketUpdate.NEW_TICKET) {
+                        db.delete(TicketStore.TABLE_TICKETS, TicketStore.TicketColumns._ID + " = ?",
+                                new String[] { Long.toString(update.getId()) });
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Moves edits of a ticket made while an update of it was being sent onto
+     * the ticket the server returned, and shows them in the store again.
+     */
+    private void rebasePending(SQLiteDatabase db, TicketImpl ticket, Trac trac) {
+        String[] id = new String[] { Long.toString(ticket.getId()) };
+        String where = PendingColumns.TICKET_ID + " = ? AND " + PendingColumns.STATE + " = " + STATE_PENDING;
+        Cursor cursor = db.query(TABLE_PENDING_UPDATES, new String[] { PendingColumns.ATTRIBUTES }, where, id,
+                null, null, PendingColumns._ID);
+        try {
+            while (cursor.moveToNext()) {
+                store.applyLocally(db, ticket.getId(), parseAttributes(cursor.getString(0)), trac.getPriorityRanks());
+            }
+        } finally {
+            cursor.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(PendingColumns.CHANGE_TOKEN, ticket.getChangeToken());
+        db.update(TABLE_PENDING_UPDATES, values, where, id);
+    }
+
+    /**
+     * Queues the conflicting updates again on top of the tickets as they are
+     * now stored, so sending them overwrites the changes made on the server
+     * in between.
+     *
+     * @return the number of updates queued again
+     */
+    public int retryConflicts() {
+        SQLiteDatabase db = store.getWritableDatabase();
+        int retried = 0;
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_PENDING_UPDATES, new String[] { PendingColumns._ID, PendingColumns.TICKET_ID },
+                    PendingColumns.STATE + " = " + STATE_CONFLICT, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String token = store.getChangeToken(cursor.getLong(1));
+                    if (token == null) {
+                        // Not synced again yet, the conflict would repeat
+                        continue;
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(PendingColumns.CHANGE_TOKEN, token);
+                    values.put(PendingColumns.STATE, STATE_PENDING);
+                    values.putNull(PendingColumns.ERROR);
+                    retried += db.update(TABLE_PENDING_UPDATES, values, PendingColumns._ID + " = ?",
+                            new String[] { Long.toString(cursor.getLong(0)) });
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return retried;
+    }
+
+    /**
+     * Drops the updates in the given state from the queue.
+     *
+     * @return the number of updates dropped
+     */
+    public int discard(int state) {
+        return store.getWritableDatabase().delete(TABLE_PENDING_UPDATES, PendingColumns.STATE + " = " + state, null);
+    }
+
+    private boolean isInFlight(long rowId) {
+        synchronized (inFlight) {
+            return inFlight.contains(rowId);
+        }
+    }
+
+    private static String joinComments(String first, String second) {
+        if (first == null || first.length() == 0) {
+            return second == null ? "" : second;
+        }
+        if (second == null || second.length() == 0) {
+            return first;
+        }
+        return first + "\n\n" + second;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> parseAttributes(String json) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        Object parsed = json == null ? null : JSONValue.parse(json);
+        if (parsed instanceof Map) {
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) parsed).entrySet()) {
+                attributes.put(String.valueOf(entry.getKey()),
+                        entry.getValue() == null ? null : String.valueOf(entry.getValue()));
+            }
+        }
+        return attributes;
+    }
+}
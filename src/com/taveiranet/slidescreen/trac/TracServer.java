@@ -0,0 +1,161 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.SharedPreferences;
+
+/**
+ * A configured Trac server: where it is, how to log in and which tickets
+ * to show.
+ *
+ * <p>The first server is read from the preferences edited in
+ * {@link com.taveiranet.slidescreen.trac.preference.SlideTracPluginPreferences}
+ * ("serverUrl", "authMethod", "username", "password", "owner"). Further
+ * servers use the same keys prefixed with "server.1.", "server.2." and so
+ * on, up to the first missing index.
+ */
+public class TracServer {
+
+    /**
+     * The tickets shown for a server: open ones, optionally narrowed to an
+     * owner.
+     */
+    private static final String OPEN_TICKETS_QUERY = "max=0&status!=closed";
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final String query;
+
+    /**
+     * @param url      the project URL, e.g. "http://example.com/trac/project"
+     * @param username the user name for HTTP Basic authentication, null for
+     *                 anonymous access
+     * @param password the password, null for anonymous access
+     * @param query    the Trac query selecting the tickets to show
+     */
+    public TracServer(String url, String username, String password, String query) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.username = username;
+        this.password = password;
+        this.query = query;
+    }
+
+    /**
+     * Reads the configured servers, skipping incomplete entries.
+     */
+    public static List<TracServer> fromPreferences(SharedPreferences prefs) {
+        List<TracServer> servers = new ArrayList<TracServer>();
+        for (int i = 0; ; i++) {
+            String prefix = i == 0 ? "" : "server." + i + ".";
+            String url = prefs.getString(prefix + "serverUrl", null);
+            if (url == null) {
+                if (i == 0) {
+                    continue;
+                }
+                break;
+            }
+            try {
+                new URL(url);
+            } catch (MalformedURLException e) {
+                continue;
+            }
+            String username = null;
+            String password = null;
+            if ("basic".equals(prefs.getString(prefix + "authMethod", "anonymous"))) {
+                username = prefs.getString(prefix + "username", null);
+                password = prefs.getString(prefix + "password", null);
+                if (username == null || password == null) {
+                    continue;
+                }
+            }
+            String query = OPEN_TICKETS_QUERY;
+            String owner = prefs.getString(prefix + "owner", null);
+            if (owner != null && owner.length() > 0) {
+                query += "&owner=" + escapeQueryValue(owner);
+            }
+            servers.add(new TracServer(url.trim(), username, password, query));
+        }
+        return servers;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the JSON-RPC endpoint; Trac serves it under /login when
+     * authentication is required.
+     */
+    public String getRpcUrl() {
+        return url + (username != null ? "/login/rpc" : "/rpc");
+    }
+
+    public String getTicketUrl(long id) {
+        return url + "/ticket/" + id;
+    }
+
+    /**
+     * Returns a short stable key for the server and account, usable in file
+     * names.
+     */
+    public String getKey() {
+        return Integer.toHexString((url + "\n" + username).hashCode());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TracServer)) {
+            return false;
+        }
+        TracServer server = (TracServer) o;
+        return url.equals(server.url) && equal(username, server.username)
+                && equal(password, server.password) && equal(query, server.query);
+    }
+
+    @Override
+    public int hashCode() {
+        return url.hashCode() * 31 + (username == null ? 0 : username.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return username == null ? url : username + "@" + url;
+    }
+
+    /**
+     * Escapes a value for Trac's query syntax, where "&" separates
+     * constraints and "|" alternative values, so that a value can't add
+     * constraints of its own.
+     */
+    static String escapeQueryValue(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '&' || c == '|') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
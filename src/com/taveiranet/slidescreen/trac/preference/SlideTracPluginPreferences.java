@@ -2,8 +2,14 @@ package com.taveiranet.slidescreen.trac.preference;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
 
+import org.lustin.trac.xmlprc2.TicketPropertyImpl;
+import org.lustin.trac.xmlprc2.Trac;
+import org.lustin.trac.xmlprc2.TracMetadata;
+import org.lustin.trac.xmlprc2.TracMetadataCache;
+
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -20,6 +26,7 @@ import android.text.method.PasswordTransformationMethod;
 import android.util.Log;
 
 import com.taveiranet.slidescreen.trac.R;
+import com.taveiranet.slidescreen.trac.TracServer;
 
 public class SlideTracPluginPreferences extends PreferenceActivity {
     private static final String TAG = SlideTracPluginPreferences.class.getName();
@@ -35,6 +42,20 @@ public class SlideTracPluginPreferences extends PreferenceActivity {
 
 	private PreferenceCategory queryPreferences = null;
 
+	private Trac trac = null;
+	private TracMetadataCache metadataCache = null;
+	private final TracMetadataCache.Listener metadataListener = new TracMetadataCache.Listener() {
+		@Override
+		public void metadataLoaded(TracMetadata metadata) {
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					populateQueryOptions();
+				}
+			});
+		}
+	};
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -133,33 +154,82 @@ public class SlideTracPluginPreferences extends PreferenceActivity {
 		
 	}
 
+	/**
+	 * Rebuilds the query options from the cached server metadata. Options
+	 * that need metadata not loaded yet appear once it arrives.
+	 */
 	private void populateQueryOptions(){
 		String server = mPrefs.getString("serverUrl", null);
 		String authMethod = mPrefs.getString("authMethod", "anonymous");
 		String username = mPrefs.getString("username", null);
 		String password = mPrefs.getString("password", null);
 		
+		queryPreferences.removeAll();
 		try {
 			new URL(server);
 			if("anonymous".equals(authMethod) || ("basic".equals(authMethod) && username != null && password != null)){
-				//Trac trac = new Trac(this, server, username, password);
-				
-//				trac.getAllResolutions();
-//				trac.getAllStatus();
-//				trac.getAllTypes();
-//				trac.getAllPriorities();
+				if("anonymous".equals(authMethod)){
+					username = null;
+					password = null;
+				}
 				
 				EditTextPreference owner = new EditTextPreference(this);
 				owner.setTitle("Owner");
 				owner.setDialogTitle("Owner");
 				owner.setKey("owner");
 				queryPreferences.addPreference(owner);
+				
+				TracMetadata metadata = getMetadataCache(server, username, password).peek();
+				if(metadata != null){
+					addQueryOption("status", "Status", metadata.getStatuses());
+					addQueryOption("type", "Type", metadata.getTypes());
+					addQueryOption("priority", "Priority", metadata.getPriorities());
+					addQueryOption("component", "Component", metadata.getComponents());
+					addQueryOption("milestone", "Milestone", metadata.getMilestones());
+				}
 			}
 		} catch (MalformedURLException e) {
 		}
 		
 	}
 	
+	/**
+	 * Returns the metadata cache the provider uses for the server: the Trac
+	 * is built the way {@link com.taveiranet.slidescreen.trac.TicketAggregator}
+	 * builds it, so both get the same server key and share one cache.
+	 */
+	private TracMetadataCache getMetadataCache(String server, String username, String password){
+		TracServer tracServer = new TracServer(server.trim(), username, password, null);
+		// The shared cache outlives this activity
+		Trac current = new Trac(getApplicationContext(), tracServer.getRpcUrl(), username, password);
+		if(trac == null || !trac.getServerKey().equals(current.getServerKey())){
+			if(metadataCache != null){
+				metadataCache.removeListener(metadataListener);
+			}
+			trac = current;
+			metadataCache = TracMetadataCache.getShared(trac);
+			metadataCache.addListener(metadataListener);
+		}
+		return metadataCache;
+	}
+	
+	private void addQueryOption(String key, String title, List<? extends TicketPropertyImpl> values){
+		if(values.isEmpty()){
+			return;
+		}
+		CharSequence[] names = new CharSequence[values.size()];
+		for(int i = 0; i < names.length; i++){
+			names[i] = values.get(i).getName();
+		}
+		ListPreference option = new ListPreference(this);
+		option.setTitle(title);
+		option.setDialogTitle(title);
+		option.setEntries(names);
+		option.setEntryValues(names);
+		option.setKey(key);
+		queryPreferences.addPreference(option);
+	}
+	
 	@Override
 	protected void onPause() {
 		Log.d(TAG,"* onPause");
@@ -175,4 +245,12 @@ public class SlideTracPluginPreferences extends PreferenceActivity {
 		}
 		super.onStop();
 	}
+	
+	@Override
+	protected void onDestroy() {
+		if(metadataCache != null){
+			metadataCache.removeListener(metadataListener);
+		}
+		super.onDestroy();
+	}
 }
@@ -1,5 +1,8 @@
 package com.thetransactioncompany.jsonrpc2;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -63,9 +66,29 @@ public abstract class JSONRPC2Message {
 
 
 	/** 
-	 * Keep a ready JSON parser instance at hand. 
+	 * Keep a ready JSON parser instance at hand for each thread. The 
+	 * JSON.simple parser is stateful and must not be shared between 
+	 * threads; keeping one per thread also lets every parse reuse the 
+	 * lexer buffer of the previous one.
 	 */
-	protected static final JSONParser parser = new JSONParser();
+	private static final ThreadLocal<JSONParser> parsers = new ThreadLocal<JSONParser>() {
+	
+		protected JSONParser initialValue() {
+			return new JSONParser();
+		}
+	};
+	
+	
+	/**
+	 * Returns the JSON parser of the calling thread. The parser must not
+	 * be handed over to other threads.
+	 *
+	 * @return The JSON parser.
+	 */
+	protected static JSONParser getParser() {
+	
+		return parsers.get();
+	}
 	
 	
 	/**
@@ -170,7 +193,7 @@ public abstract class JSONRPC2Message {
 		// the string is a valid JSON at all
 		try {
 			//JSONObject json = (JSONObject)
-			parser.parse(jsonString);
+			getParser().parse(jsonString);
 		} catch (ParseException e) {
 			// Not JSON
 			throw new JSONRPC2ParseException("Invalid JSON: " + e.getMessage(), jsonString);
@@ -193,24 +216,121 @@ public abstract class JSONRPC2Message {
 	 * @throws JSONRPC2ParseException With detailed message if parsing 
 	 *                                failed.
 	 */
-	@SuppressWarnings("unchecked")
 	protected static Map<String, Object> parseJSONObject(final String jsonString, final boolean preserveOrder)
 		throws JSONRPC2ParseException {
 	
+		return toJSONObject(parseJSON(jsonString, preserveOrder), jsonString);
+	}
+	
+	
+	/**
+	 * Ensures the specified parsed JSON entity is a JSON object.
+	 *
+	 * @param json       The parsed JSON entity.
+	 * @param jsonString The original JSON string, {@code null} if the JSON
+	 *                   was parsed from a stream.
+	 *
+	 * @return The JSON object.
+	 *
+	 * @throws JSONRPC2ParseException If the entity is not a JSON object.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Map<String, Object> toJSONObject(final Object json, final String jsonString)
+		throws JSONRPC2ParseException {
+		
+		if (json instanceof List<?>)
+			throw new JSONRPC2ParseException("JSON-RPC 2.0 batch requests/notifications not supported");
+			
+		if (! (json instanceof Map<?,?>))
+			throw new JSONRPC2ParseException("Invalid JSON-RPC 2.0 message: Message must be a JSON object", jsonString);
+		
+		return (Map<String,Object>)json;
+	}
+	
+	
+	/**
+	 * Parses a JSON string into its <a href="#map">Java representation</a>.
+	 *
+	 * @param jsonString    A JSON string.
+	 * @param preserveOrder If {@code true} the member order of JSON objects
+	 *                      will be preserved.
+	 *
+	 * @return The parsed JSON entity.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if parsing 
+	 *                                failed.
+	 */
+	protected static Object parseJSON(final String jsonString, final boolean preserveOrder)
+		throws JSONRPC2ParseException {
+	
 		if (jsonString == null)
 			throw new JSONRPC2ParseException("Null argument");
 		
 		if ("".equals(jsonString.trim()))
 			throw new JSONRPC2ParseException("Invalid JSON: Empty string");
 		
-		Object json;
+		try {
+			return parseJSON(new StringReader(jsonString), preserveOrder, jsonString);
+			
+		} catch (IOException e) {
+			// Can't happen with a string reader
+			throw new JSONRPC2ParseException("Invalid JSON: " + e.getMessage(), jsonString);
+		}
+	}
+	
+	
+	/**
+	 * Parses JSON text from a character stream into its 
+	 * <a href="#map">Java representation</a>, without buffering the whole
+	 * text in memory first. The reader is not closed.
+	 *
+	 * @param reader        The JSON character stream.
+	 * @param preserveOrder If {@code true} the member order of JSON objects
+	 *                      will be preserved.
+	 *
+	 * @return The parsed JSON entity.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if parsing 
+	 *                                failed.
+	 * @throws IOException            If reading from the stream failed.
+	 */
+	protected static Object parseJSON(final Reader reader, final boolean preserveOrder)
+		throws JSONRPC2ParseException, IOException {
+	
+		if (reader == null)
+			throw new JSONRPC2ParseException("Null argument");
+		
+		return parseJSON(reader, preserveOrder, null);
+	}
+	
+	
+	/**
+	 * Parses JSON text from a character stream with the parser of the 
+	 * calling thread.
+	 *
+	 * @param reader        The JSON character stream.
+	 * @param preserveOrder If {@code true} the member order of JSON objects
+	 *                      will be preserved.
+	 * @param jsonString    The original JSON string for error reporting, 
+	 *                      {@code null} if not available.
+	 *
+	 * @return The parsed JSON entity.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if parsing 
+	 *                                failed.
+	 * @throws IOException            If reading from the stream failed.
+	 */
+	private static Object parseJSON(final Reader reader, final boolean preserveOrder, final String jsonString)
+		throws JSONRPC2ParseException, IOException {
 		
-		// Parse the JSON string
+		// Parse the JSON text
 		try {
+			JSONParser parser = getParser();
+			
 			if (preserveOrder)
-				json = parser.parse(jsonString, linkedContainerFactory);
+				return parser.parse(reader, linkedContainerFactory);
 			else
-				json = parser.parse(jsonString);
+				return parser.parse(reader);
 			
 		} catch (ParseException e) {
 			// Not JSON
@@ -222,14 +342,6 @@ public abstract class JSONRPC2Message {
 				throw new JSONRPC2ParseException("Invalid JSON: " + e.getMessage(), jsonString);
 		
 		} 
-		
-		if (json instanceof List<?>)
-			throw new JSONRPC2ParseException("JSON-RPC 2.0 batch requests/notifications not supported");
-			
-		if (! (json instanceof Map<?,?>))
-			throw new JSONRPC2ParseException("Invalid JSON-RPC 2.0 message: Message must be a JSON object");
-		
-		return (Map<String,Object>)json;
 	}
 	
 	
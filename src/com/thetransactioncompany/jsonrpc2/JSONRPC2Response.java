@@ -1,5 +1,8 @@
 package com.thetransactioncompany.jsonrpc2;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -171,13 +174,166 @@ public class JSONRPC2Response extends JSONRPC2Message {
 	 * @throws JSONRPC2ParseException With detailed message if the parsing 
 	 *                                failed.
 	 */
-	@SuppressWarnings("unchecked")
 	public static JSONRPC2Response parse(final String jsonString, final boolean preserveOrder, final boolean noStrict)
 		throws JSONRPC2ParseException {
 	
 		// Initial JSON object parsing
 		Map<String, Object> json = JSONRPC2Message.parseJSONObject(jsonString, preserveOrder);
 		
+		return parse(json, noStrict, jsonString);
+	}
+	
+	
+	/** 
+	 * Parses a JSON-RPC 2.0 response straight from a character stream, 
+	 * without buffering the whole message in memory first. The reader is
+	 * not closed.
+	 *
+	 * @param reader        The JSON-RPC 2.0 response character stream.
+	 * @param preserveOrder If {@code true} the member order of JSON objects
+	 *                      in results will be preserved.
+	 * @param noStrict      If {@code true} the {@code "jsonrpc":"2.0"}
+	 *                      version field in the JSON-RPC 2.0 message will 
+	 *                      not be checked.
+	 *
+	 * @return The corresponding JSON-RPC 2.0 response object.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if the parsing 
+	 *                                failed.
+	 * @throws IOException            If reading from the stream failed.
+	 */
+	public static JSONRPC2Response parse(final Reader reader, final boolean preserveOrder, final boolean noStrict)
+		throws JSONRPC2ParseException, IOException {
+	
+		Object json = JSONRPC2Message.parseJSON(reader, preserveOrder);
+		
+		return parse(JSONRPC2Message.toJSONObject(json, null), noStrict, null);
+	}
+	
+	
+	/** 
+	 * Parses a JSON-RPC 2.0 batch response string, i.e. a JSON array of
+	 * response objects. The responses are returned in the order the server
+	 * sent them, which need not match the order of the original requests.
+	 *
+	 * <p>If the server rejected the batch as a whole it replies with a 
+	 * single response object instead of an array; that response is then
+	 * returned as the only list item.
+	 *
+	 * @param jsonString    The JSON-RPC 2.0 batch response string, UTF-8 
+	 *                      encoded.
+	 * @param preserveOrder If {@code true} the member order of JSON objects
+	 *                      in results will be preserved.
+	 * @param noStrict      If {@code true} the {@code "jsonrpc":"2.0"}
+	 *                      version field in the JSON-RPC 2.0 messages will 
+	 *                      not be checked.
+	 *
+	 * @return The corresponding JSON-RPC 2.0 response objects.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if the parsing 
+	 *                                failed.
+	 */
+	public static List<JSONRPC2Response> parseBatch(final String jsonString, final boolean preserveOrder, final boolean noStrict)
+		throws JSONRPC2ParseException {
+	
+		Object json = JSONRPC2Message.parseJSON(jsonString, preserveOrder);
+		
+		return parseBatch(json, noStrict, jsonString);
+	}
+	
+	
+	/** 
+	 * Parses a JSON-RPC 2.0 batch response straight from a character 
+	 * stream. See {@link #parseBatch(String,boolean,boolean)}. The reader 
+	 * is not closed.
+	 *
+	 * @param reader        The JSON-RPC 2.0 batch response character 
+	 *                      stream.
+	 * @param preserveOrder If {@code true} the member order of JSON objects
+	 *                      in results will be preserved.
+	 * @param noStrict      If {@code true} the {@code "jsonrpc":"2.0"}
+	 *                      version field in the JSON-RPC 2.0 messages will 
+	 *                      not be checked.
+	 *
+	 * @return The corresponding JSON-RPC 2.0 response objects.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if the parsing 
+	 *                                failed.
+	 * @throws IOException            If reading from the stream failed.
+	 */
+	public static List<JSONRPC2Response> parseBatch(final Reader reader, final boolean preserveOrder, final boolean noStrict)
+		throws JSONRPC2ParseException, IOException {
+	
+		Object json = JSONRPC2Message.parseJSON(reader, preserveOrder);
+		
+		return parseBatch(json, noStrict, null);
+	}
+	
+	
+	/** 
+	 * Parses a JSON-RPC 2.0 batch response from its JSON representation.
+	 *
+	 * @param json       The parsed JSON array, or a JSON object if the 
+	 *                   batch was rejected as a whole.
+	 * @param noStrict   If {@code true} the {@code "jsonrpc":"2.0"} version
+	 *                   field will not be checked.
+	 * @param jsonString The original JSON string for error reporting, 
+	 *                   {@code null} if not available.
+	 *
+	 * @return The corresponding JSON-RPC 2.0 response objects.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if the parsing 
+	 *                                failed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<JSONRPC2Response> parseBatch(final Object json, final boolean noStrict, final String jsonString)
+		throws JSONRPC2ParseException {
+	
+		List<JSONRPC2Response> responses = new ArrayList<JSONRPC2Response>();
+		
+		if (json instanceof Map<?,?>) {
+		
+			responses.add(parse((Map<String,Object>)json, noStrict, jsonString));
+			return responses;
+		}
+		
+		if (! (json instanceof List<?>))
+			throw new JSONRPC2ParseException("Invalid JSON-RPC 2.0 batch response: Batch must be a JSON array", jsonString);
+		
+		List<Object> batch = (List<Object>)json;
+		
+		if (batch.isEmpty())
+			throw new JSONRPC2ParseException("Invalid JSON-RPC 2.0 batch response: Empty array", jsonString);
+		
+		for (Object item: batch) {
+		
+			if (! (item instanceof Map<?,?>))
+				throw new JSONRPC2ParseException("Invalid JSON-RPC 2.0 batch response: Member must be a JSON object", jsonString);
+			
+			responses.add(parse((Map<String,Object>)item, noStrict, jsonString));
+		}
+		
+		return responses;
+	}
+	
+	
+	/** 
+	 * Parses a JSON-RPC 2.0 response from its JSON object representation.
+	 *
+	 * @param json       The JSON object.
+	 * @param noStrict   If {@code true} the {@code "jsonrpc":"2.0"} version
+	 *                   field will not be checked.
+	 * @param jsonString The original JSON string, for error reporting.
+	 *
+	 * @return The corresponding JSON-RPC 2.0 response object.
+	 *
+	 * @throws JSONRPC2ParseException With detailed message if the parsing 
+	 *                                failed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONRPC2Response parse(final Map<String, Object> json, final boolean noStrict, final String jsonString)
+		throws JSONRPC2ParseException {
+		
 		// Check for JSON-RPC version "2.0"
 		if (! noStrict) {
 			Object version = json.get("jsonrpc");
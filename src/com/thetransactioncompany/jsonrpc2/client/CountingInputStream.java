@@ -0,0 +1,69 @@
+package com.thetransactioncompany.jsonrpc2.client;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Input stream that adds the number of bytes read through it to a counter.
+ */
+class CountingInputStream extends FilterInputStream {
+
+
+	/**
+	 * The counter to add the read bytes to.
+	 */
+	private final AtomicLong counter;
+
+
+	/**
+	 * Creates a new counting input stream.
+	 *
+	 * @param in      The underlying stream.
+	 * @param counter The counter to add the read bytes to.
+	 */
+	CountingInputStream(final InputStream in, final AtomicLong counter) {
+
+		super(in);
+		this.counter = counter;
+	}
+
+
+	public int read()
+		throws IOException {
+
+		int b = super.read();
+
+		if (b != -1)
+			counter.incrementAndGet();
+
+		return b;
+	}
+
+
+	public int read(final byte[] b, final int off, final int len)
+		throws IOException {
+
+		int n = super.read(b, off, len);
+
+		if (n > 0)
+			counter.addAndGet(n);
+
+		return n;
+	}
+
+
+	public long skip(final long n)
+		throws IOException {
+
+		long skipped = super.skip(n);
+
+		if (skipped > 0)
+			counter.addAndGet(skipped);
+
+		return skipped;
+	}
+}
@@ -0,0 +1,491 @@
+package com.thetransactioncompany.jsonrpc2.client;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Manages the life cycle of the HTTP connections used by
+ * {@link JSONRPC2Session}s.
+ *
+ * <p>The platform {@code URLConnection} implementation keeps idle sockets in
+ * a keep-alive cache, but only once a response body has been read to the end
+ * and closed. This class makes sure that happens:
+ *
+ * <ul>
+ *     <li>Response streams are drained and closed, also on errors, so their
+ *         socket (and TLS session) can be picked up by the next request.</li>
+ *     <li>At most {@link #getMaxConnectionsPerHost} connections to the same
+ *         host are open at any time; further requests wait for a free
+ *         one.</li>
+ * </ul>
+ *
+ * <p>The platform keep-alive cache can be sized to match with
+ * {@link #applyKeepAliveProperties}, once at application start.
+ *
+ * <p>The counters of new and reused connections are estimated from the
+ * same rules the keep-alive cache applies (a fully read response without a
+ * "Connection: close" header, picked up again within the keep-alive
+ * timeout). The platform does not expose its cache, so they may be off
+ * when it decides otherwise.
+ *
+ * <p>Sessions share the {@link #getDefault default pool} unless they are
+ * given their own.
+ */
+public class HTTPConnectionPool {
+
+
+	/**
+	 * The default maximum number of concurrent connections per host.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+
+	/**
+	 * The default time in milliseconds an idle connection is kept alive.
+	 */
+	public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 5000L;
+
+
+	/**
+	 * Response bodies with more unread bytes than this are not drained,
+	 * their connection is closed instead.
+	 */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+
+	/**
+	 * The shared default pool.
+	 */
+	private static HTTPConnectionPool defaultPool = null;
+
+
+	/**
+	 * The maximum number of concurrent connections per host.
+	 */
+	private final int maxConnectionsPerHost;
+
+
+	/**
+	 * The time in milliseconds an idle connection is kept alive.
+	 */
+	private final long keepAliveTimeout;
+
+
+	/**
+	 * The per-host state, keyed by protocol, host and port.
+	 */
+	private final Map<String, Host> hosts = new HashMap<String, Host>();
+
+
+	/**
+	 * The connections handed out and not yet released.
+	 */
+	private final Map<URLConnection, Host> leased = new IdentityHashMap<URLConnection, Host>();
+
+
+	/**
+	 * The estimated number of connections that required a new socket.
+	 */
+	private long estimatedNewConnections = 0;
+
+
+	/**
+	 * The estimated number of connections that reused a kept-alive socket.
+	 */
+	private long estimatedReusedConnections = 0;
+
+
+	/**
+	 * Per-host connection state.
+	 */
+	private static class Host {
+
+		/**
+		 * Limits the concurrent connections to the host.
+		 */
+		final Semaphore permits;
+
+
+		/**
+		 * The release times of the idle kept-alive connections, oldest
+		 * first.
+		 */
+		final LinkedList<Long> idleSince = new LinkedList<Long>();
+
+
+		Host(final int maxConnections) {
+
+			permits = new Semaphore(maxConnections, true);
+		}
+	}
+
+
+	/**
+	 * Gets the default pool shared by all sessions.
+	 *
+	 * @return The default pool.
+	 */
+	public static synchronized HTTPConnectionPool getDefault() {
+
+		if (defaultPool == null)
+			defaultPool = new HTTPConnectionPool(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_TIMEOUT);
+
+		return defaultPool;
+	}
+
+
+	/**
+	 * Creates a new connection pool.
+	 *
+	 * @param maxConnectionsPerHost The maximum number of concurrent
+	 *                              connections per host, must be
+	 *                              positive.
+	 * @param keepAliveTimeout      The time in milliseconds an idle
+	 *                              connection is kept alive.
+	 */
+	public HTTPConnectionPool(final int maxConnectionsPerHost, final long keepAliveTimeout) {
+
+		if (maxConnectionsPerHost < 1)
+			throw new IllegalArgumentException("The maximum connections per host must be positive");
+
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.keepAliveTimeout = keepAliveTimeout;
+	}
+
+
+	/**
+	 * Gets the maximum number of concurrent connections per host.
+	 *
+	 * @return The maximum number of connections per host.
+	 */
+	public int getMaxConnectionsPerHost() {
+
+		return maxConnectionsPerHost;
+	}
+
+
+	/**
+	 * Gets the time an idle connection is kept alive.
+	 *
+	 * @return The keep-alive timeout in milliseconds.
+	 */
+	public long getKeepAliveTimeout() {
+
+		return keepAliveTimeout;
+	}
+
+
+	/**
+	 * Enables HTTP keep-alive in the platform {@code URLConnection}
+	 * implementation and sizes its cache to this pool's maximum number of
+	 * connections per host. These are JVM-wide settings the platform reads
+	 * when it opens its first connection, so this has no effect once any
+	 * {@code URLConnection} was used; call it at application start. The
+	 * per-host limit of the pool holds either way.
+	 */
+	public void applyKeepAliveProperties() {
+
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerHost));
+	}
+
+
+	/**
+	 * Gets the estimated number of connections that required a new
+	 * socket.
+	 *
+	 * @return The estimated number of new connections.
+	 */
+	public synchronized long getEstimatedNewConnectionCount() {
+
+		return estimatedNewConnections;
+	}
+
+
+	/**
+	 * Gets the estimated number of connections that reused a kept-alive
+	 * socket.
+	 *
+	 * @return The estimated number of reused connections.
+	 */
+	public synchronized long getEstimatedReusedConnectionCount() {
+
+		return estimatedReusedConnections;
+	}
+
+
+	/**
+	 * Opens a connection to the specified URL, waiting for a free slot if
+	 * the maximum number of connections to its host is reached. The
+	 * connection must be handed back by closing the stream returned by
+	 * {@link #getInputStream}, or by {@link #release}.
+	 *
+	 * @param url The URL.
+	 *
+	 * @return The URL connection.
+	 *
+	 * @throws IOException If the connection couldn't be opened or the
+	 *                     wait was interrupted.
+	 */
+	public URLConnection open(final URL url)
+		throws IOException {
+
+		Host host = getHost(url);
+
+		try {
+			host.permits.acquire();
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+		}
+
+		URLConnection con = null;
+
+		try {
+			con = url.openConnection();
+
+		} finally {
+
+			if (con == null)
+				host.permits.release();
+		}
+
+		synchronized (this) {
+
+			leased.put(con, host);
+
+			long now = System.currentTimeMillis();
+
+			while (! host.idleSince.isEmpty() && now - host.idleSince.getFirst() > keepAliveTimeout)
+				host.idleSince.removeFirst();
+
+			if (host.idleSince.isEmpty()) {
+				estimatedNewConnections++;
+			}
+			else {
+				host.idleSince.removeLast();
+				estimatedReusedConnections++;
+			}
+		}
+
+		return con;
+	}
+
+
+	/**
+	 * Gets the response body of the specified connection. Closing the
+	 * returned stream drains any unread bytes and hands the connection
+	 * back to the pool. If the server responded with an error status the
+	 * error body is drained and the connection handed back before the
+	 * exception is thrown.
+	 *
+	 * @param con A connection opened by this pool.
+	 *
+	 * @return The response body stream.
+	 *
+	 * @throws IOException On a network error or HTTP error status.
+	 */
+	public InputStream getInputStream(final URLConnection con)
+		throws IOException {
+
+		try {
+			return new PooledInputStream(con, con.getInputStream());
+
+		} catch (IOException e) {
+
+			boolean reusable = false;
+
+			if (con instanceof HttpURLConnection) {
+
+				InputStream error = ((HttpURLConnection)con).getErrorStream();
+
+				if (error != null)
+					reusable = drainAndClose(error);
+			}
+
+			release(con, reusable);
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Hands a connection back to the pool.
+	 *
+	 * @param con      A connection opened by this pool. Connections that
+	 *                 were already released are ignored.
+	 * @param reusable {@code true} if the response was read completely and
+	 *                 the socket can be kept alive, {@code false} to close
+	 *                 it.
+	 */
+	public void release(final URLConnection con, final boolean reusable) {
+
+		// Only look at the headers of a completed response, anything else
+		// could block on the network
+		boolean keepAlive = reusable && ! "close".equalsIgnoreCase(con.getHeaderField("Connection"));
+
+		Host host;
+
+		synchronized (this) {
+
+			host = leased.remove(con);
+
+			if (host == null)
+				return;
+
+			if (keepAlive && host.idleSince.size() < maxConnectionsPerHost)
+				host.idleSince.addLast(System.currentTimeMillis());
+
+		}
+
+		if (! keepAlive && con instanceof HttpURLConnection)
+			((HttpURLConnection)con).disconnect();
+
+		host.permits.release();
+	}
+
+
+	/**
+	 * Gets the state of the host of the specified URL.
+	 *
+	 * @param url The URL.
+	 *
+	 * @return The host state.
+	 */
+	private synchronized Host getHost(final URL url) {
+
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+
+		Host host = hosts.get(key);
+
+		if (host == null) {
+			host = new Host(maxConnectionsPerHost);
+			hosts.put(key, host);
+		}
+
+		return host;
+	}
+
+
+	/**
+	 * Reads the remaining bytes of the specified stream, up to a limit,
+	 * and closes it.
+	 *
+	 * @param in The stream.
+	 *
+	 * @return {@code true} if the stream was read to the end, else
+	 *         {@code false}.
+	 */
+	private static boolean drainAndClose(final InputStream in) {
+
+		boolean drained = false;
+
+		try {
+			byte[] buffer = new byte[1024];
+			int total = 0;
+			int len;
+
+			while (total <= MAX_DRAIN_BYTES && (len = in.read(buffer)) != -1)
+				total += len;
+
+			drained = total <= MAX_DRAIN_BYTES;
+
+		} catch (IOException e) {
+			// not reusable
+		} finally {
+
+			try {
+				in.close();
+			} catch (IOException e) {
+				drained = false;
+			}
+		}
+
+		return drained;
+	}
+
+
+	/**
+	 * Response body stream that drains itself and hands its connection
+	 * back to the pool when closed.
+	 */
+	private class PooledInputStream extends FilterInputStream {
+
+
+		/**
+		 * The connection the stream belongs to.
+		 */
+		private final URLConnection con;
+
+
+		/**
+		 * Set once the stream has been closed.
+		 */
+		private boolean closed = false;
+
+
+		/**
+		 * Set if reading from the stream failed.
+		 */
+		private boolean failed = false;
+
+
+		PooledInputStream(final URLConnection con, final InputStream in) {
+
+			super(in);
+			this.con = con;
+		}
+
+
+		public int read()
+			throws IOException {
+
+			try {
+				return super.read();
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+
+		public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+
+			try {
+				return super.read(b, off, len);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+
+
+		public void close() {
+
+			if (closed)
+				return;
+
+			closed = true;
+
+			boolean drained = drainAndClose(in);
+
+			release(con, drained && ! failed);
+		}
+	}
+}
@@ -1,15 +1,28 @@
 package com.thetransactioncompany.jsonrpc2.client;
 
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -17,6 +30,8 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.json.simple.JSONArray;
+
 import com.taveiranet.slidescreen.trac.Base64;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Notification;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
@@ -38,12 +53,22 @@ import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
  *         responses.</li>
  *     <li>Preserve parse order of JSON object members in JSON-RPC 2.0 response
  *         results (for human facing clients, e.g. the JSON-RPC 2.0 Shell).</li>
+ *     <li>Parse responses straight from the HTTP input stream, without
+ *         buffering them in a string first.</li>
  *     <li>Disable strict JSON-RPC 2.0 parsing of responses to allow sessions
  *         with older JSON-RPC (1.0) servers.</li>
  *     <li>Trust all X.509 server certificates (for HTTPS connections), 
  *         including self-signed.</li>
+ *     <li>Share a pool of kept-alive HTTP connections with a per-host
+ *         limit, see {@link HTTPConnectionPool}.</li>
+ *     <li>Accept gzip/deflate compressed responses and gzip compress large
+ *         requests. Byte counters show the bandwidth used before and after
+ *         compression.</li>
  * </ul>
  *
+ * <p>Several requests can be sent in one HTTP POST as a JSON-RPC 2.0 batch,
+ * see {@link #send(List)}.
+ *
  * <p>Example:
  *
  * <pre>
@@ -166,6 +191,13 @@ public class JSONRPC2Session {
 	private boolean preserveObjectMemberOrder = false;
 	
 	
+	/**
+	 * If {@code true} responses are parsed straight from the HTTP input 
+	 * stream instead of being read into a string first.
+	 */
+	private boolean streamResponses = false;
+	
+	
 	/**
 	 * If {@code false} received JSON-RPC 2.0 responses must conform strictly
 	 * to the JSON-RPC 2.0 specification. If {@code true} parsing will be
@@ -178,12 +210,100 @@ public class JSONRPC2Session {
 	 * Custom socket factory for HTTPS connections (if not {@code null}).
 	 */
 	private SSLSocketFactory sslSocketFactory = null;
+	
+	
+	/**
+	 * The pool managing the HTTP connections of this session.
+	 */
+	private HTTPConnectionPool connectionPool = HTTPConnectionPool.getDefault();
+	
+	
+	/**
+	 * If {@code true} gzip and deflate compressed responses are requested
+	 * with an "Accept-Encoding" header.
+	 */
+	private boolean acceptCompressedResponses = false;
+	
+	
+	/**
+	 * Request bodies of at least this many bytes are sent gzip compressed.
+	 * If negative requests are never compressed.
+	 */
+	private int requestCompressionThreshold = -1;
+	
+	
+	/**
+	 * The default HTTP connect timeout in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+	
+	
+	/**
+	 * The default HTTP read timeout in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+	
+	
+	/**
+	 * The method name batches sent by {@link #send(List)} are recorded
+	 * under in the {@link #getStatistics statistics}.
+	 */
+	public static final String BATCH_METHOD = "batch";
+	
+	
+	/**
+	 * The HTTP connect timeout in milliseconds, zero for none.
+	 */
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	
+	
+	/**
+	 * The HTTP read timeout in milliseconds, zero for none.
+	 */
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	
+	
+	/**
+	 * The number of request body bytes before compression.
+	 */
+	private final AtomicLong requestBytes = new AtomicLong();
+	
+	
+	/**
+	 * The number of request body bytes sent over the wire.
+	 */
+	private final AtomicLong requestWireBytes = new AtomicLong();
+	
+	
+	/**
+	 * The number of response body bytes after decompression.
+	 */
+	private final AtomicLong responseBytes = new AtomicLong();
+	
+	
+	/**
+	 * The number of response body bytes received over the wire.
+	 */
+	private final AtomicLong responseWireBytes = new AtomicLong();
+	
+	
+	/**
+	 * The statistics requests are recorded in, {@code null} if none.
+	 */
+	private RPCStatistics statistics = RPCStatistics.getDefault();
 
 
 	private String username = null;
 	
 	private String password = null;
 	
+	
+	/**
+	 * The "Authorization" header value for the credentials, {@code null}
+	 * if there are none. Computed once per credentials change.
+	 */
+	private String authorization = null;
+	
 	/**
 	 * Creates a new client session to a JSON-RPC 2.0 server at the
 	 * specified URL.
@@ -210,9 +330,27 @@ public class JSONRPC2Session {
 
 	public JSONRPC2Session (final URL url, final String username, final String password) {
 		this(url);
+		setCredentials(username, password);
+		strictParsingDisabled=false;
+	}
+
+
+	/**
+	 * Sets the credentials for HTTP Basic authentication. The
+	 * "Authorization" header is only added if both are set.
+	 *
+	 * @param username The user name, {@code null} for none.
+	 * @param password The password, {@code null} for none.
+	 */
+	public void setCredentials(final String username, final String password) {
+	
 		this.username = username;
 		this.password = password;
-		strictParsingDisabled=false;
+		
+		if (username != null && password != null)
+			authorization = "Basic " + Base64.encode(username + ":" + password, false);
+		else
+			authorization = null;
 	}
 
 	
@@ -328,13 +466,26 @@ public class JSONRPC2Session {
 	 */
 	public void setAllowedResponseContentTypes(final String[] contentTypes) {
 	
-		this.allowedResponseContentTypes = contentTypes;
+		if (contentTypes == null) {
+			this.allowedResponseContentTypes = null;
+			return;
+		}
+		
+		// Copy and trim once here, so that matching a response needs no
+		// allocation
+		String[] types = new String[contentTypes.length];
+		
+		for (int i = 0; i < contentTypes.length; i++)
+			types[i] = contentTypes[i].trim();
+		
+		this.allowedResponseContentTypes = types;
 	}
 	
 	
 	/**
 	 * Checks if the specified "Content-Type" (MIME) header value is 
-	 * allowed.
+	 * allowed. The media type is compared case-insensitively and may be
+	 * followed by parameters, e.g. "application/json; charset=UTF-8".
 	 *
 	 * @param contentType The "Content-Type" (MIME) header value.
 	 *
@@ -352,9 +503,7 @@ public class JSONRPC2Session {
 		
 		for (String t: allowedResponseContentTypes) {
 
-			// Note: the content type may include optional parameters, e.g.
-			// "application/json; charset=ISO-8859-1; ..."	
-			if (contentType.matches("^" + Pattern.quote(t) + "(\\s|;|$)?.*"))
+			if (isMediaType(contentType, t))
 				return true;
 		}
 		
@@ -362,6 +511,32 @@ public class JSONRPC2Session {
 	}
 	
 	
+	/**
+	 * Checks if a "Content-Type" header value starts with the specified
+	 * media type, followed by the end of the value, whitespace or the ";"
+	 * before parameters.
+	 *
+	 * @param contentType The "Content-Type" (MIME) header value.
+	 * @param mediaType   The media type, e.g. "application/json".
+	 *
+	 * @return {@code true} if the media type matches, else {@code false}.
+	 */
+	private static boolean isMediaType(final String contentType, final String mediaType) {
+	
+		int length = mediaType.length();
+		
+		if (! contentType.regionMatches(true, 0, mediaType, 0, length))
+			return false;
+		
+		if (contentType.length() == length)
+			return true;
+		
+		char next = contentType.charAt(length);
+		
+		return next == ';' || Character.isWhitespace(next);
+	}
+	
+	
 	/**
 	 * Returns {@code true} if the member order of parsed JSON objects in
 	 * JSON-RPC 2.0 response results is preserved.
@@ -392,6 +567,36 @@ public class JSONRPC2Session {
 	}
 	
 	
+	/**
+	 * Returns {@code true} if JSON-RPC 2.0 responses are parsed straight
+	 * from the HTTP input stream.
+	 *
+	 * @return {@code true} if responses are streamed into the parser,
+	 *         else {@code false}.
+	 */
+	public boolean streamsResponses() {
+	
+		return streamResponses;
+	}
+	
+	
+	/**
+	 * Controls how HTTP response bodies are handed to the JSON parser. The
+	 * default behaviour is to read the whole body into a string and parse
+	 * that, which keeps the raw text available in parse exceptions. By 
+	 * passing a boolean {@code true} the UTF-8 decoded input stream is 
+	 * fed directly into the parser, which roughly halves the peak memory
+	 * needed for large responses.
+	 *
+	 * @param stream If {@code true} responses will be streamed into the
+	 *               parser, else not.
+	 */
+	public void streamResponses(final boolean stream) {
+	
+		streamResponses = stream;
+	}
+	
+	
 	/**
 	 * Returns {@code true} if strict parsing of received JSON-RPC 2.0
 	 * responses is disabled and the "jsonrpc" version field is not checked.
@@ -422,6 +627,213 @@ public class JSONRPC2Session {
 	}
 	
 	
+	/**
+	 * Returns {@code true} if gzip and deflate compressed responses are
+	 * accepted.
+	 *
+	 * @return {@code true} if compressed responses are accepted, else
+	 *         {@code false}.
+	 */
+	public boolean acceptsCompressedResponses() {
+	
+		return acceptCompressedResponses;
+	}
+	
+	
+	/**
+	 * Controls response compression. By passing a boolean {@code true} an
+	 * "Accept-Encoding: gzip, deflate" header is added to HTTP POST 
+	 * requests and compressed responses are decoded according to their
+	 * "Content-Encoding" header.
+	 *
+	 * @param accept If {@code true} compressed responses will be accepted,
+	 *               else not.
+	 */
+	public void acceptCompressedResponses(final boolean accept) {
+	
+		acceptCompressedResponses = accept;
+	}
+	
+	
+	/**
+	 * Gets the size from which request bodies are gzip compressed.
+	 *
+	 * @return The size in bytes, negative if requests are never 
+	 *         compressed.
+	 */
+	public int getRequestCompressionThreshold() {
+	
+		return requestCompressionThreshold;
+	}
+	
+	
+	/**
+	 * Sets the size from which request bodies are gzip compressed and sent
+	 * with a "Content-Encoding: gzip" header. Only enable this for servers
+	 * known to accept compressed requests. Requests are not compressed by
+	 * default.
+	 *
+	 * @param threshold The size in bytes, negative to never compress 
+	 *                  requests.
+	 */
+	public void setRequestCompressionThreshold(final int threshold) {
+	
+		requestCompressionThreshold = threshold;
+	}
+	
+	
+	/**
+	 * Gets the HTTP connect timeout.
+	 *
+	 * @return The timeout in milliseconds, zero for none.
+	 */
+	public int getConnectTimeout() {
+	
+		return connectTimeout;
+	}
+	
+	
+	/**
+	 * Sets the HTTP connect timeout. Defaults to 
+	 * {@link #DEFAULT_CONNECT_TIMEOUT}.
+	 *
+	 * @param timeout The timeout in milliseconds, zero for none.
+	 */
+	public void setConnectTimeout(final int timeout) {
+	
+		if (timeout < 0)
+			throw new IllegalArgumentException("The connect timeout must not be negative");
+		
+		connectTimeout = timeout;
+	}
+	
+	
+	/**
+	 * Gets the HTTP read timeout, i.e. the longest time to wait for 
+	 * response data.
+	 *
+	 * @return The timeout in milliseconds, zero for none.
+	 */
+	public int getReadTimeout() {
+	
+		return readTimeout;
+	}
+	
+	
+	/**
+	 * Sets the HTTP read timeout, i.e. the longest time to wait for 
+	 * response data. Defaults to {@link #DEFAULT_READ_TIMEOUT}.
+	 *
+	 * @param timeout The timeout in milliseconds, zero for none.
+	 */
+	public void setReadTimeout(final int timeout) {
+	
+		if (timeout < 0)
+			throw new IllegalArgumentException("The read timeout must not be negative");
+		
+		readTimeout = timeout;
+	}
+	
+	
+	/**
+	 * Gets the number of request body bytes produced by this session, 
+	 * before compression.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getRequestByteCount() {
+	
+		return requestBytes.get();
+	}
+	
+	
+	/**
+	 * Gets the number of request body bytes this session sent over the 
+	 * wire, after compression.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getRequestWireByteCount() {
+	
+		return requestWireBytes.get();
+	}
+	
+	
+	/**
+	 * Gets the number of response body bytes this session consumed, after
+	 * decompression.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getResponseByteCount() {
+	
+		return responseBytes.get();
+	}
+	
+	
+	/**
+	 * Gets the number of response body bytes this session received over 
+	 * the wire, before decompression.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getResponseWireByteCount() {
+	
+		return responseWireBytes.get();
+	}
+	
+	
+	/**
+	 * Gets the statistics requests are recorded in.
+	 *
+	 * @return The statistics, {@code null} if none are recorded.
+	 */
+	public RPCStatistics getStatistics() {
+	
+		return statistics;
+	}
+	
+	
+	/**
+	 * Sets the statistics requests sent by {@link #send(JSONRPC2Request)}
+	 * and {@link #send(List)} are recorded in. Sessions record into 
+	 * {@link RPCStatistics#getDefault} by default.
+	 *
+	 * @param statistics The statistics, {@code null} to record none.
+	 */
+	public void setStatistics(final RPCStatistics statistics) {
+	
+		this.statistics = statistics;
+	}
+	
+	
+	/**
+	 * Gets the pool managing the HTTP connections of this session.
+	 *
+	 * @return The connection pool.
+	 */
+	public HTTPConnectionPool getConnectionPool() {
+	
+		return connectionPool;
+	}
+	
+	
+	/**
+	 * Sets the pool managing the HTTP connections of this session. By 
+	 * default all sessions share {@link HTTPConnectionPool#getDefault}.
+	 *
+	 * @param connectionPool The connection pool, must not be 
+	 *                       {@code null}.
+	 */
+	public void setConnectionPool(final HTTPConnectionPool connectionPool) {
+	
+		if (connectionPool == null)
+			throw new NullPointerException("The connection pool must not be null");
+		
+		this.connectionPool = connectionPool;
+	}
+	
+	
 	/**
 	 * Controls checking of X.509 certificates presented by the server when
 	 * establishing a secure HTTPS connection. The default behaviour is to 
@@ -478,22 +890,21 @@ public class JSONRPC2Session {
 		// Add "Origin" header?
 		if (origin != null)
 			con.setRequestProperty("Origin", origin);
+		
+		// Add "Accept-Encoding" header?
+		if (acceptCompressedResponses)
+			con.setRequestProperty("Accept-Encoding", "gzip, deflate");
 	}
 	
 	
-	/** 
-	 * Sends a JSON-RPC 2.0 request using HTTP POST and returns the server
-	 * response.
-	 *
-	 * @param request The JSON-RPC 2.0 request to send.
+	/**
+	 * Opens a new HTTP connection to the server URL, ready for a POST.
 	 *
-	 * @return The JSON-RPC 2.0 response returned by the server.
+	 * @return The URL connection.
 	 *
-	 * @throws JSONRPC2SessionException On a network error, unexpected
-	 *                                  HTTP response content type or 
-	 *                                  invalid JSON-RPC 2.0 response.
+	 * @throws JSONRPC2SessionException On a network error.
 	 */
-	public JSONRPC2Response send(final JSONRPC2Request request)
+	private URLConnection openConnection()
 		throws JSONRPC2SessionException {
 	
 		// Open HTTP connection
@@ -501,9 +912,11 @@ public class JSONRPC2Session {
 		
 		try {
 
-			con = url.openConnection();
-			if(this.username != null && this.password != null){
-				con.setRequestProperty("Authorization", "Basic " + Base64.encode(username + ":"+ password,false));
+			con = connectionPool.open(url);
+			con.setConnectTimeout(connectTimeout);
+			con.setReadTimeout(readTimeout);
+			if(authorization != null){
+				con.setRequestProperty("Authorization", authorization);
 			}
 
 		} catch (IOException e) {
@@ -522,36 +935,118 @@ public class JSONRPC2Session {
 		if (con instanceof HttpsURLConnection && sslSocketFactory != null) 
 			((HttpsURLConnection)con).setSSLSocketFactory(sslSocketFactory);
 		
-		// Send request encoded as JSON
+		return con;
+	}
+	
+	
+	/**
+	 * The body sizes and parse time of a single HTTP exchange, as recorded in the
+	 * {@link RPCStatistics}.
+	 */
+	private static class Exchange {
+	
+		/**
+		 * The request body size, before compression.
+		 */
+		int requestBytes = 0;
+		
+		/**
+		 * The response body size, after decompression.
+		 */
+		final AtomicLong responseBytes = new AtomicLong();
+		
+		/**
+		 * The time spent parsing the response.
+		 */
+		long parseNanos = 0;
+	}
+	
+	
+	/**
+	 * Writes the specified JSON string as the body of an HTTP POST. On 
+	 * failure the connection is handed back to the pool.
+	 *
+	 * @param con        The URL connection.
+	 * @param jsonString The JSON string to send.
+	 *
+	 * @return The body size, before compression.
+	 *
+	 * @throws JSONRPC2SessionException On a network error.
+	 */
+	private int write(final URLConnection con, final String jsonString)
+		throws JSONRPC2SessionException {
+	
 		try {
-			OutputStreamWriter wr = new OutputStreamWriter(con.getOutputStream());
+			byte[] body = jsonString.getBytes("UTF-8");
+			int size = body.length;
+			requestBytes.addAndGet(size);
+			
+			if (requestCompressionThreshold >= 0 && body.length >= requestCompressionThreshold) {
 			
-			wr.write(request.toString());
-			wr.flush();
-			wr.close();
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+				gzip.write(body);
+				gzip.close();
+				
+				body = compressed.toByteArray();
+				con.setRequestProperty("Content-Encoding", "gzip");
+			}
+			
+			if (con instanceof HttpURLConnection)
+				((HttpURLConnection)con).setFixedLengthStreamingMode(body.length);
+			
+			OutputStream out = con.getOutputStream();
+			
+			out.write(body);
+			out.flush();
+			out.close();
+			
+			requestWireBytes.addAndGet(body.length);
+			
+			return size;
 			
 		} catch (IOException e) {
+			connectionPool.release(con, false);
+			
 			throw new JSONRPC2SessionException(
 				"Network exception",
 				JSONRPC2SessionException.NETWORK_EXCEPTION,
 				e);
 		}
-		StringBuilder responseText = new StringBuilder();
-			
+	}
+	
+	
+	/**
+	 * POSTs the specified JSON string to the server and opens a reader on
+	 * the response body, once its content type has been checked.
+	 *
+	 * @param jsonString The JSON string to send.
+	 * @param exchange   Receives the body sizes of the exchange, 
+	 *                   {@code null} if not needed.
+	 *
+	 * @return The UTF-8 decoding reader of the HTTP response body. The 
+	 *         caller must close it, which hands the connection back to
+	 *         the pool.
+	 *
+	 * @throws JSONRPC2SessionException On a network error or unexpected
+	 *                                  HTTP response content type.
+	 */
+	private Reader post(final String jsonString, final Exchange exchange)
+		throws JSONRPC2SessionException {
+	
+		URLConnection con = openConnection();
+		
+		// Send request encoded as JSON
+		int size = write(con, jsonString);
+		
+		if (exchange != null)
+			exchange.requestBytes = size;
+		
 		// Get the response
+		InputStream input = null;
 		
 		try {
-			BufferedReader input = new BufferedReader(new InputStreamReader(con.getInputStream()));
-			
-			String line;
-			while ((line = input.readLine()) != null) {
-				responseText.append(line);
-				responseText.append(System.getProperty("line.separator"));
-			}
-			
-			
-			
-			//input.close();
+			input = connectionPool.getInputStream(con);
 		
 		} catch (IOException e) {
 			
@@ -568,28 +1063,97 @@ public class JSONRPC2Session {
 			
 			if (! isAllowedResponseContentType(mimeType)) {
 			
+				close(input);
+				
 				throw new JSONRPC2SessionException(
 					"The server returned an unexpected content type '" + mimeType + "' response", 
 					JSONRPC2SessionException.UNEXPECTED_CONTENT_TYPE);
 			}
 		}
-
-		// Parse and return the response
-		JSONRPC2Response response = null;
+		
+		// Decode compressed response?
+		String encoding = con.getHeaderField("Content-Encoding");
 		
 		try {
-			response = JSONRPC2Response.parse(responseText.toString(), preserveObjectMemberOrder, strictParsingDisabled);
-		} catch (JSONRPC2ParseException e) {
+			input = new CountingInputStream(input, responseWireBytes);
+			
+			if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+				input = new GZIPInputStream(input);
+			else if ("deflate".equalsIgnoreCase(encoding))
+				input = new InflaterInputStream(input);
+			
+			input = new CountingInputStream(input, responseBytes);
+			
+			if (exchange != null)
+				input = new CountingInputStream(input, exchange.responseBytes);
+			
+			return new InputStreamReader(input, "UTF-8");
+			
+		} catch (IOException e) {
 		
+			close(input);
+			
 			throw new JSONRPC2SessionException(
-				"Invalid JSON-RPC 2.0 response",
-				JSONRPC2SessionException.BAD_RESPONSE,
+				"Network exception",
+				JSONRPC2SessionException.NETWORK_EXCEPTION,
 				e);
 		}
+	}
+	
+	
+	/**
+	 * Reads the specified response body into a string.
+	 *
+	 * @param reader The response body reader.
+	 *
+	 * @return The response body.
+	 *
+	 * @throws IOException On a network error.
+	 */
+	private static String readAll(final Reader reader)
+		throws IOException {
+	
+		StringBuilder responseText = new StringBuilder();
+		char[] buffer = new char[4096];
+		int len;
+		
+		while ((len = reader.read(buffer)) != -1)
+			responseText.append(buffer, 0, len);
+		
+		return responseText.toString();
+	}
+	
+	
+	/**
+	 * Closes the specified stream, ignoring any errors.
+	 *
+	 * @param stream The stream to close, may be {@code null}.
+	 */
+	private static void close(final Closeable stream) {
+	
+		if (stream == null)
+			return;
 		
-		// Response ID must match the request ID, except for
-		// -32700 (parse error), -32600 (invalid request) and 
-		// -32603 (internal error)
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	
+	/**
+	 * Checks whether the ID of a response matches the ID of its request.
+	 * IDs must match, except for -32700 (parse error), -32600 (invalid
+	 * request) and -32603 (internal error) responses.
+	 *
+	 * @param request  The JSON-RPC 2.0 request.
+	 * @param response The JSON-RPC 2.0 response.
+	 *
+	 * @throws JSONRPC2SessionException If the IDs don't match.
+	 */
+	private static void ensureMatchingID(final JSONRPC2Request request, final JSONRPC2Response response)
+		throws JSONRPC2SessionException {
 		
 		Object reqID = request.getID();
 		Object resID = response.getID();
@@ -610,56 +1174,265 @@ public class JSONRPC2Session {
 		}
 		else {
 			throw new JSONRPC2SessionException(
-				"Invalid JSON-RPC 2.0 response: ID mismatch: Returned " + resID.toString() + ", expected " + reqID.toString(),
+				"Invalid JSON-RPC 2.0 response: ID mismatch: Returned " + resID + ", expected " + reqID,
 				JSONRPC2SessionException.BAD_RESPONSE);
 		}
-			                                   
+	}
+	
+	
+	/** 
+	 * Sends a JSON-RPC 2.0 request using HTTP POST and returns the server
+	 * response. The request is recorded in the session's 
+	 * {@link #getStatistics statistics}.
+	 *
+	 * @param request The JSON-RPC 2.0 request to send.
+	 *
+	 * @return The JSON-RPC 2.0 response returned by the server.
+	 *
+	 * @throws JSONRPC2SessionException On a network error, unexpected
+	 *                                  HTTP response content type or 
+	 *                                  invalid JSON-RPC 2.0 response.
+	 */
+	public JSONRPC2Response send(final JSONRPC2Request request)
+		throws JSONRPC2SessionException {
+	
+		if (statistics == null)
+			return send(request, null);
+		
+		Exchange exchange = new Exchange();
+		long start = System.nanoTime();
+		int causeType = 0;
+		
+		try {
+			return send(request, exchange);
+			
+		} catch (JSONRPC2SessionException e) {
+		
+			causeType = e.getCauseType();
+			throw e;
+			
+		} finally {
+		
+			statistics.record(request.getMethod(), System.nanoTime() - start, 
+			                  exchange.requestBytes, exchange.responseBytes.get(), 
+			                  exchange.parseNanos, causeType);
+		}
+	}
+	
+	
+	/** 
+	 * Sends a JSON-RPC 2.0 request and parses the response, see 
+	 * {@link #send(JSONRPC2Request)}.
+	 *
+	 * @param request  The JSON-RPC 2.0 request to send.
+	 * @param exchange Receives the body sizes and parse time, 
+	 *                 {@code null} if not needed.
+	 */
+	private JSONRPC2Response send(final JSONRPC2Request request, final Exchange exchange)
+		throws JSONRPC2SessionException {
+	
+		Reader responseReader = post(request.toString(), exchange);
+
+		// Parse and return the response
+		JSONRPC2Response response = null;
+		long parseStart = System.nanoTime();
+		
+		try {
+			if (streamResponses)
+				response = JSONRPC2Response.parse(responseReader, preserveObjectMemberOrder, strictParsingDisabled);
+			else
+				response = JSONRPC2Response.parse(readAll(responseReader), preserveObjectMemberOrder, strictParsingDisabled);
+				
+		} catch (IOException e) {
+		
+			throw new JSONRPC2SessionException(
+				"Network exception",
+				JSONRPC2SessionException.NETWORK_EXCEPTION,
+				e);
+				
+		} catch (JSONRPC2ParseException e) {
+		
+			throw new JSONRPC2SessionException(
+				"Invalid JSON-RPC 2.0 response",
+				JSONRPC2SessionException.BAD_RESPONSE,
+				e);
+				
+		} finally {
+		
+			if (exchange != null)
+				exchange.parseNanos = System.nanoTime() - parseStart;
+			
+			close(responseReader);
+		}
+		
+		ensureMatchingID(request, response);
 		
 		return response;
 	}
 	
 	
-	/**
-	 * Sends a JSON-RPC 2.0 notification using HTTP POST. Note that 
-	 * contrary to requests, notifications produce no server response.
+	/** 
+	 * Sends a batch of JSON-RPC 2.0 requests in a single HTTP POST and 
+	 * returns the server responses. The responses are matched to their 
+	 * requests by ID, so the server may return them in any order. The 
+	 * batch is recorded in the session's {@link #getStatistics statistics}
+	 * as one call of the method {@link #BATCH_METHOD}.
 	 *
-	 * @param notification The JSON-RPC 2.0 notification to send.
+	 * @param requests The JSON-RPC 2.0 requests to send. Each request must
+	 *                 have a non-null ID which is unique within the batch.
 	 *
-	 * @throws JSONRPC2SessionException On a network error.
+	 * @return The JSON-RPC 2.0 responses, in the order of the requests.
+	 *
+	 * @throws JSONRPC2SessionException On a network error, unexpected
+	 *                                  HTTP response content type, 
+	 *                                  invalid JSON-RPC 2.0 response or
+	 *                                  a missing response.
 	 */
-	public void send(final JSONRPC2Notification notification)
+	@SuppressWarnings("unchecked")
+	public List<JSONRPC2Response> send(final List<JSONRPC2Request> requests)
 		throws JSONRPC2SessionException {
+	
+		if (requests.isEmpty())
+			return new ArrayList<JSONRPC2Response>(0);
 		
-		// Open HTTP connection
-		URLConnection con = null;
+		JSONArray batch = new JSONArray();
+		Set<String> ids = new HashSet<String>();
+		
+		for (JSONRPC2Request request: requests) {
+		
+			if (request.getID() == null)
+				throw new IllegalArgumentException("Batched requests must have an ID");
+			
+			if (! ids.add(request.getID().toString()))
+				throw new IllegalArgumentException("Duplicate request ID in batch: " + request.getID());
+			
+			batch.add(request.toJSON());
+		}
+		
+		if (statistics == null)
+			return send(requests, batch, null);
+		
+		Exchange exchange = new Exchange();
+		long start = System.nanoTime();
+		int causeType = 0;
 		
 		try {
-			con = url.openConnection();
+			return send(requests, batch, exchange);
+			
+		} catch (JSONRPC2SessionException e) {
+		
+			causeType = e.getCauseType();
+			throw e;
+			
+		} finally {
+		
+			statistics.record(BATCH_METHOD, System.nanoTime() - start, 
+			                  exchange.requestBytes, exchange.responseBytes.get(), 
+			                  exchange.parseNanos, causeType);
+		}
+	}
+	
+	
+	/** 
+	 * Sends a batch and matches the responses to the requests, see 
+	 * {@link #send(List)}.
+	 *
+	 * @param requests The JSON-RPC 2.0 requests to send.
+	 * @param batch    The requests as a JSON array.
+	 * @param exchange Receives the body sizes and parse time, 
+	 *                 {@code null} if not needed.
+	 */
+	private List<JSONRPC2Response> send(final List<JSONRPC2Request> requests, final JSONArray batch, 
+	                                    final Exchange exchange)
+		throws JSONRPC2SessionException {
+	
+		Reader responseReader = post(batch.toString(), exchange);
+		
+		List<JSONRPC2Response> received = null;
+		long parseStart = System.nanoTime();
+		
+		try {
+			if (streamResponses)
+				received = JSONRPC2Response.parseBatch(responseReader, preserveObjectMemberOrder, strictParsingDisabled);
+			else
+				received = JSONRPC2Response.parseBatch(readAll(responseReader), preserveObjectMemberOrder, strictParsingDisabled);
 			
 		} catch (IOException e) {
 		
 			throw new JSONRPC2SessionException(
-				"Network exception", 
+				"Network exception",
 				JSONRPC2SessionException.NETWORK_EXCEPTION,
 				e);
+				
+		} catch (JSONRPC2ParseException e) {
+		
+			throw new JSONRPC2SessionException(
+				"Invalid JSON-RPC 2.0 batch response",
+				JSONRPC2SessionException.BAD_RESPONSE,
+				e);
+				
+		} finally {
+		
+			if (exchange != null)
+				exchange.parseNanos = System.nanoTime() - parseStart;
+			
+			close(responseReader);
 		}
 		
-		applyHeaders(con);
+		// The server rejected the batch as a whole with a single error
+		// response?
+		if (received.size() == 1 && received.get(0).getID() == null && ! received.get(0).indicatesSuccess()) {
 		
-		// Set POST mode
-		con.setDoOutput(true);
+			throw new JSONRPC2SessionException(
+				"The server rejected the JSON-RPC 2.0 batch: " + received.get(0).getError().getMessage(),
+				JSONRPC2SessionException.BAD_RESPONSE);
+		}
 		
-		// Set trust all certs SSL factory?
-		if (con instanceof HttpsURLConnection && sslSocketFactory != null) 
-			((HttpsURLConnection)con).setSSLSocketFactory(sslSocketFactory);
+		Map<String,JSONRPC2Response> responsesByID = new HashMap<String,JSONRPC2Response>();
+		
+		for (JSONRPC2Response response: received) {
+		
+			if (response.getID() != null)
+				responsesByID.put(response.getID().toString(), response);
+		}
+		
+		List<JSONRPC2Response> responses = new ArrayList<JSONRPC2Response>(requests.size());
 		
+		for (JSONRPC2Request request: requests) {
+		
+			JSONRPC2Response response = responsesByID.get(request.getID().toString());
+			
+			if (response == null)
+				throw new JSONRPC2SessionException(
+					"Invalid JSON-RPC 2.0 batch response: Missing response for ID " + request.getID(),
+					JSONRPC2SessionException.BAD_RESPONSE);
+			
+			responses.add(response);
+		}
+		
+		return responses;
+	}
+	
+	
+	/**
+	 * Sends a JSON-RPC 2.0 notification using HTTP POST. Note that 
+	 * contrary to requests, notifications produce no server response.
+	 *
+	 * @param notification The JSON-RPC 2.0 notification to send.
+	 *
+	 * @throws JSONRPC2SessionException On a network error.
+	 */
+	public void send(final JSONRPC2Notification notification)
+		throws JSONRPC2SessionException {
+		
+		URLConnection con = openConnection();
 		
 		// Send notification encoded as JSON
+		write(con, notification.toString());
+		
+		// Complete the exchange so the connection can be kept alive
 		try {
-			OutputStreamWriter wr = new OutputStreamWriter(con.getOutputStream());
-			wr.write(notification.toString());
-			wr.flush();
-			wr.close();
+			close(connectionPool.getInputStream(con));
 			
 		} catch (IOException e) {
 			
@@ -0,0 +1,428 @@
+package com.thetransactioncompany.jsonrpc2.client;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Collects per method statistics of the JSON-RPC 2.0 requests sent by
+ * {@link JSONRPC2Session}s: a latency histogram, request and response body
+ * sizes, response parse time and error counts by cause.
+ *
+ * <p>Sessions record into the {@link #getDefault default instance} unless
+ * they are given their own. Recording is cheap and thread-safe, a
+ * {@link #snapshot} copies the current values.
+ */
+public class RPCStatistics {
+
+
+	/**
+	 * The upper bounds in milliseconds of the latency histogram buckets. A
+	 * last bucket counts the requests slower than the last bound.
+	 */
+	public static final long[] LATENCY_BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+
+	/**
+	 * The shared default instance.
+	 */
+	private static RPCStatistics defaultStatistics = null;
+
+
+	/**
+	 * The statistics per method name, sorted by name.
+	 */
+	private final Map<String,Method> methods = new TreeMap<String,Method>();
+
+
+	/**
+	 * Gets the shared default instance.
+	 *
+	 * @return The default statistics.
+	 */
+	public static synchronized RPCStatistics getDefault() {
+
+		if (defaultStatistics == null)
+			defaultStatistics = new RPCStatistics();
+
+		return defaultStatistics;
+	}
+
+
+	/**
+	 * Records a request that got a response or failed with a session
+	 * exception.
+	 *
+	 * @param method        The JSON-RPC method name.
+	 * @param latencyNanos  The time from sending the request until the
+	 *                      response was parsed or the request failed.
+	 * @param requestBytes  The request body size, before compression.
+	 * @param responseBytes The response body size, after decompression.
+	 * @param parseNanos    The time spent parsing the response.
+	 * @param causeType     The {@link JSONRPC2SessionException} cause
+	 *                      type, zero if there was none.
+	 */
+	public void record(final String method, final long latencyNanos, final long requestBytes,
+	                   final long responseBytes, final long parseNanos, final int causeType) {
+
+		Method stats = get(method);
+		long latencyMillis = latencyNanos / 1000000L;
+		int bucket = 0;
+
+		while (bucket < LATENCY_BUCKETS.length && latencyMillis > LATENCY_BUCKETS[bucket])
+			bucket++;
+
+		synchronized (stats) {
+			stats.calls++;
+			stats.latencyNanos += latencyNanos;
+			stats.maxLatencyNanos = Math.max(stats.maxLatencyNanos, latencyNanos);
+			stats.histogram[bucket]++;
+			stats.requestBytes += requestBytes;
+			stats.responseBytes += responseBytes;
+			stats.parseNanos += parseNanos;
+
+			if (causeType > 0 && causeType < stats.sessionErrors.length)
+				stats.sessionErrors[causeType]++;
+		}
+	}
+
+
+	/**
+	 * Records a response carrying a JSON-RPC 2.0 error.
+	 *
+	 * @param method The JSON-RPC method name.
+	 */
+	public void recordErrorResponse(final String method) {
+
+		Method stats = get(method);
+
+		synchronized (stats) {
+			stats.errorResponses++;
+		}
+	}
+
+
+	/**
+	 * Records that a request is sent again after a failure.
+	 *
+	 * @param method The JSON-RPC method name.
+	 */
+	public void recordRetry(final String method) {
+
+		Method stats = get(method);
+
+		synchronized (stats) {
+			stats.retries++;
+		}
+	}
+
+
+	/**
+	 * Records a request that was not sent because the server is considered
+	 * unreachable.
+	 *
+	 * @param method The JSON-RPC method name.
+	 */
+	public void recordRejected(final String method) {
+
+		Method stats = get(method);
+
+		synchronized (stats) {
+			stats.rejected++;
+		}
+	}
+
+
+	/**
+	 * Copies the current statistics.
+	 *
+	 * @return The statistics of every method recorded so far, sorted by
+	 *         method name.
+	 */
+	public List<Method> snapshot() {
+
+		List<Method> copy = new ArrayList<Method>();
+
+		synchronized (methods) {
+
+			for (Method stats: methods.values()) {
+
+				synchronized (stats) {
+					copy.add(new Method(stats));
+				}
+			}
+		}
+
+		return Collections.unmodifiableList(copy);
+	}
+
+
+	/**
+	 * Discards all statistics recorded so far.
+	 */
+	public void reset() {
+
+		synchronized (methods) {
+			methods.clear();
+		}
+	}
+
+
+	/**
+	 * Gets the statistics of the specified method, creating them on first
+	 * use.
+	 *
+	 * @param method The JSON-RPC method name.
+	 *
+	 * @return The statistics.
+	 */
+	private Method get(final String method) {
+
+		synchronized (methods) {
+
+			Method stats = methods.get(method);
+
+			if (stats == null) {
+				stats = new Method(method);
+				methods.put(method, stats);
+			}
+
+			return stats;
+		}
+	}
+
+
+	/**
+	 * The statistics of one JSON-RPC method. Instances returned by
+	 * {@link RPCStatistics#snapshot} don't change.
+	 */
+	public static class Method {
+
+
+		private final String name;
+
+		private long calls;
+
+		private long latencyNanos;
+
+		private long maxLatencyNanos;
+
+		private final long[] histogram;
+
+		private long requestBytes;
+
+		private long responseBytes;
+
+		private long parseNanos;
+
+		/**
+		 * Session exception counts, indexed by cause type.
+		 */
+		private final long[] sessionErrors;
+
+		private long errorResponses;
+
+		private long retries;
+
+		private long rejected;
+
+
+		private Method(final String name) {
+
+			this.name = name;
+			histogram = new long[LATENCY_BUCKETS.length + 1];
+			sessionErrors = new long[JSONRPC2SessionException.BAD_RESPONSE + 1];
+		}
+
+
+		private Method(final Method other) {
+
+			name = other.name;
+			calls = other.calls;
+			latencyNanos = other.latencyNanos;
+			maxLatencyNanos = other.maxLatencyNanos;
+			histogram = other.histogram.clone();
+			requestBytes = other.requestBytes;
+			responseBytes = other.responseBytes;
+			parseNanos = other.parseNanos;
+			sessionErrors = other.sessionErrors.clone();
+			errorResponses = other.errorResponses;
+			retries = other.retries;
+			rejected = other.rejected;
+		}
+
+
+		/**
+		 * Gets the JSON-RPC method name.
+		 *
+		 * @return The method name.
+		 */
+		public String getName() {
+
+			return name;
+		}
+
+
+		/**
+		 * Gets the number of requests sent, including failed ones.
+		 *
+		 * @return The number of requests.
+		 */
+		public long getCalls() {
+
+			return calls;
+		}
+
+
+		/**
+		 * Gets the total latency of all requests.
+		 *
+		 * @return The total latency in milliseconds.
+		 */
+		public long getTotalLatency() {
+
+			return latencyNanos / 1000000L;
+		}
+
+
+		/**
+		 * Gets the latency of the slowest request.
+		 *
+		 * @return The maximum latency in milliseconds.
+		 */
+		public long getMaxLatency() {
+
+			return maxLatencyNanos / 1000000L;
+		}
+
+
+		/**
+		 * Estimates a latency percentile from the histogram.
+		 *
+		 * @param percentile The percentile, between 0 and 100.
+		 *
+		 * @return The upper bound in milliseconds of the histogram bucket
+		 *         holding the percentile, the maximum latency for the last
+		 *         bucket, zero if there were no requests.
+		 */
+		public long getLatencyPercentile(final double percentile) {
+
+			long rank = (long)Math.ceil(calls * percentile / 100.0);
+			long seen = 0;
+
+			for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+
+				seen += histogram[i];
+
+				if (seen >= rank && seen > 0)
+					return Math.min(LATENCY_BUCKETS[i], getMaxLatency());
+			}
+
+			return getMaxLatency();
+		}
+
+
+		/**
+		 * Gets the latency histogram.
+		 *
+		 * @return The request counts per bucket of
+		 *         {@link RPCStatistics#LATENCY_BUCKETS}, followed by the
+		 *         count of slower requests.
+		 */
+		public long[] getHistogram() {
+
+			return histogram.clone();
+		}
+
+
+		/**
+		 * Gets the total request body size.
+		 *
+		 * @return The number of bytes, before compression.
+		 */
+		public long getRequestBytes() {
+
+			return requestBytes;
+		}
+
+
+		/**
+		 * Gets the total response body size.
+		 *
+		 * @return The number of bytes, after decompression.
+		 */
+		public long getResponseBytes() {
+
+			return responseBytes;
+		}
+
+
+		/**
+		 * Gets the total time spent parsing responses. For streamed
+		 * responses this includes reading the body from the network.
+		 *
+		 * @return The parse time in milliseconds.
+		 */
+		public long getParseTime() {
+
+			return parseNanos / 1000000L;
+		}
+
+
+		/**
+		 * Gets the number of requests that failed with a session exception
+		 * of the specified cause type.
+		 *
+		 * @param causeType The cause type, see the
+		 *                  {@link JSONRPC2SessionException} constants.
+		 *
+		 * @return The number of failed requests.
+		 */
+		public long getSessionErrors(final int causeType) {
+
+			if (causeType <= 0 || causeType >= sessionErrors.length)
+				return 0;
+
+			return sessionErrors[causeType];
+		}
+
+
+		/**
+		 * Gets the number of responses carrying a JSON-RPC 2.0 error.
+		 *
+		 * @return The number of error responses.
+		 */
+		public long getErrorResponses() {
+
+			return errorResponses;
+		}
+
+
+		/**
+		 * Gets the number of times a request was sent again after a
+		 * failure.
+		 *
+		 * @return The number of retries.
+		 */
+		public long getRetries() {
+
+			return retries;
+		}
+
+
+		/**
+		 * Gets the number of requests not sent because the server was
+		 * considered unreachable.
+		 *
+		 * @return The number of rejected requests.
+		 */
+		public long getRejected() {
+
+			return rejected;
+		}
+	}
+}
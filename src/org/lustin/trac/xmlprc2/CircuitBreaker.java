@@ -0,0 +1,104 @@
+package org.lustin.trac.xmlprc2;
+
+import java.lang.System;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops calls to a server that keeps failing with network errors. After
+ * {@link #getFailureThreshold()} consecutive failures the circuit opens and
+ * calls are refused without touching the network. Once the cool-down has
+ * passed one trial call is let through; its success closes the circuit, its
+ * failure opens it again. Instances for the same server share one breaker,
+ * see {@link #getShared}.
+ */
+public class CircuitBreaker {
+	/**
+	 * Default number of consecutive network failures that open the circuit.
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	/**
+	 * Default time the circuit stays open before a trial call, one minute.
+	 */
+	public static final long DEFAULT_OPEN_TIME = 60 * 1000L;
+
+	private static final Map<String, CircuitBreaker> shared = new HashMap<String, CircuitBreaker>();
+
+	private final int failureThreshold;
+	private final long openTime;
+
+	private int failures = 0;
+	private long openedAt = -1;
+	private boolean trialRunning = false;
+
+	/**
+	 * Returns the breaker shared by all clients of the given server URL.
+	 */
+	public static CircuitBreaker getShared(String url) {
+		synchronized (shared) {
+			CircuitBreaker breaker = shared.get(url);
+			if(breaker == null){
+				breaker = new CircuitBreaker(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+				shared.put(url, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	public CircuitBreaker(int failureThreshold, long openTime) {
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public long getOpenTime() {
+		return openTime;
+	}
+
+	/**
+	 * Returns whether a call may be made now. While the circuit is open this
+	 * is false, except for a single trial call once the cool-down has passed.
+	 */
+	public synchronized boolean allowRequest() {
+		if(openedAt < 0){
+			return true;
+		}
+		if(trialRunning || System.currentTimeMillis() - openedAt < openTime){
+			return false;
+		}
+		trialRunning = true;
+		return true;
+	}
+
+	/**
+	 * Returns whether the circuit is open, i.e. calls are being refused.
+	 */
+	public synchronized boolean isOpen() {
+		return openedAt >= 0;
+	}
+
+	/**
+	 * Records that the server answered, closing the circuit.
+	 */
+	public synchronized void recordSuccess() {
+		failures = 0;
+		openedAt = -1;
+		trialRunning = false;
+	}
+
+	/**
+	 * Records a network failure, opening the circuit once the threshold is
+	 * reached or when the trial call failed.
+	 */
+	public synchronized void recordFailure() {
+		failures++;
+		if(trialRunning || failures >= failureThreshold){
+			openedAt = System.currentTimeMillis();
+			trialRunning = false;
+		}
+	}
+}
@@ -4,4 +4,11 @@ public class ComponentImpl extends TicketPropertyImpl {
 	public ComponentImpl(String name) {
 		super(name);
 	}
+
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static ComponentImpl valueOf(String name) {
+		return intern(ComponentImpl.class, name);
+	}
 }
@@ -4,4 +4,11 @@ public class MilestoneImpl extends TicketPropertyImpl {
 	public MilestoneImpl(String name) {
 		super(name);
 	}
+
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static MilestoneImpl valueOf(String name) {
+		return intern(MilestoneImpl.class, name);
+	}
 }
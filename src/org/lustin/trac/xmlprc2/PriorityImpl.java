@@ -6,4 +6,11 @@ public class PriorityImpl extends TicketPropertyImpl {
 		super(name);
 	}
 
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static PriorityImpl valueOf(String name) {
+		return intern(PriorityImpl.class, name);
+	}
+
 }
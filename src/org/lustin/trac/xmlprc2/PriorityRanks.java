@@ -0,0 +1,58 @@
+package org.lustin.trac.xmlprc2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sort order of a Trac server's ticket priorities, as returned by
+ * ticket.priority.getAll, most important first. Ranks start at 1; priorities
+ * the server did not list rank after all known ones.
+ */
+public class PriorityRanks {
+	/**
+	 * The priorities of a stock Trac install, used until the server's own
+	 * list is known.
+	 */
+	public static final PriorityRanks DEFAULT = new PriorityRanks(
+			Arrays.asList("blocker", "critical", "major", "minor", "trivial"));
+
+	private final Map<String, Integer> ranks;
+	private final int unknownRank;
+
+	public PriorityRanks(List<String> names) {
+		Map<String, Integer> ranks = new HashMap<String, Integer>();
+		int rank = 1;
+		for(String name: names){
+			if(name != null && !ranks.containsKey(name)){
+				ranks.put(name, rank++);
+			}
+		}
+		this.ranks = Collections.unmodifiableMap(ranks);
+		this.unknownRank = rank;
+	}
+
+	/**
+	 * Returns the rank of a priority name, 1 for the most important.
+	 */
+	public int getRank(String name){
+		Integer rank = name == null ? null : ranks.get(name);
+		return rank == null ? unknownRank : rank.intValue();
+	}
+
+	/**
+	 * Returns the rank given to priorities the server did not list.
+	 */
+	public int getUnknownRank(){
+		return unknownRank;
+	}
+
+	/**
+	 * Returns the rank of every listed priority name.
+	 */
+	public Map<String, Integer> getRanks(){
+		return ranks;
+	}
+}
@@ -6,4 +6,11 @@ public class ResolutionImpl extends TicketPropertyImpl {
 		super(name);
 	}
 
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static ResolutionImpl valueOf(String name) {
+		return intern(ResolutionImpl.class, name);
+	}
+
 }
@@ -12,7 +12,7 @@ import org.json.simple.JSONArray;
  * @author lustin
  */
 public interface Search {
-    JSONArray getSearchFilters();
-    JSONArray performSearch(String query);
-    JSONArray performSearch(String query, JSONArray filters);
+    JSONArray getSearchFilters() throws TracException;
+    JSONArray performSearch(String query) throws TracException;
+    JSONArray performSearch(String query, JSONArray filters) throws TracException;
 }
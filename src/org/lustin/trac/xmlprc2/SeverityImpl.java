@@ -6,4 +6,11 @@ public class SeverityImpl extends TicketPropertyImpl {
 		super(name);
 	}
 
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static SeverityImpl valueOf(String name) {
+		return intern(SeverityImpl.class, name);
+	}
+
 }
@@ -5,4 +5,11 @@ public class StatusImpl extends TicketPropertyImpl {
 	public StatusImpl(String name) {
 		super(name);
 	}
+
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static StatusImpl valueOf(String name) {
+		return intern(StatusImpl.class, name);
+	}
 }
@@ -15,7 +15,7 @@ public interface System {
     /**
      * @return a list of strings, one for each (non-system) method supported by the XML-RPC server.
      */
-    JSONArray listMethods();
+    JSONArray listMethods() throws TracException;
     
     /**
      * Returns a list with three elements. First element is the epoch (0=Trac 0.10, 1=Trac 0.11 or higher). 
@@ -24,9 +24,9 @@ public interface System {
      * 
      * @return a list of strings
      */
-    JSONArray getAPIVersion();
-    JSONArray multicall(JSONArray signatures);
-    String methodHelp(String method);
-    JSONArray methodSignature(String method);
+    JSONArray getAPIVersion() throws TracException;
+    JSONArray multicall(JSONArray signatures) throws TracException;
+    String methodHelp(String method) throws TracException;
+    JSONArray methodSignature(String method) throws TracException;
     
 }
@@ -14,13 +14,14 @@ import java.util.Map;
 import java.util.Vector;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 
 public interface Ticket
 
 {
     public interface TicketProperty{
-        JSONArray getAll();
-        Map<String, Object> Get(String name);
+        JSONArray getAll() throws TracException;
+        Map<String, Object> Get(String name) throws TracException;
     }
     public interface Milestone  extends TicketProperty {    }
     public interface Severity   extends TicketProperty {    }
@@ -34,30 +35,36 @@ public interface Ticket
     JSONArray query() throws TracException; // qstr="status!=closed"
     JSONArray query(String qstr) throws TracException;
     
-    Integer delete(Integer id);
+    Integer delete(Integer id) throws TracException;
     
-    Integer create( String summary, String description);
-    Integer create( String summary, String description, Hashtable<String,Object> attribute);
-    Integer create( String summary, String description, Hashtable<String,Object> attribute, Boolean notify);
+    Integer create( String summary, String description) throws TracException;
+    Integer create( String summary, String description, Hashtable<String,Object> attribute) throws TracException;
+    Integer create( String summary, String description, Hashtable<String,Object> attribute, Boolean notify) throws TracException;
     
-    JSONArray get(Long id);
+    JSONArray get(Long id) throws TracException;
+    
+    /**
+     * @param since a {"__jsonclass__":["datetime", ...]} object
+     * @return the ids of the tickets changed since the given time
+     */
+    JSONArray getRecentChanges(JSONObject since) throws TracException;
   
-    Vector<Object> update(Integer id, String comment);
-    Vector<Object> update(Integer id, String comment, Hashtable<String,Object> attributes);
-    Vector<Object> update(Integer id, String comment, Hashtable<String,Object> attributes, Boolean notify);
+    Vector<Object> update(Integer id, String comment) throws TracException;
+    Vector<Object> update(Integer id, String comment, Hashtable<String,Object> attributes) throws TracException;
+    Vector<Object> update(Integer id, String comment, Hashtable<String,Object> attributes, Boolean notify) throws TracException;
     
-    Hashtable<String,Object> changeLog(Integer id);
-    Hashtable<String,Object> changeLog(Integer id, Integer when);
+    Hashtable<String,Object> changeLog(Integer id) throws TracException;
+    Hashtable<String,Object> changeLog(Integer id, Integer when) throws TracException;
     
-    Vector<Object> listAttachments(Integer ticket);
+    Vector<Object> listAttachments(Integer ticket) throws TracException;
     
-    byte[] getAttachment(Integer ticket, String filename);
+    byte[] getAttachment(Integer ticket, String filename) throws TracException;
     
-    String putAttachment(Integer ticket, String filename, String description, byte[] data);
-    String putAttachment(Integer ticket, String filename, String description, byte[] data, Boolean replace);
+    String putAttachment(Integer ticket, String filename, String description, byte[] data) throws TracException;
+    String putAttachment(Integer ticket, String filename, String description, byte[] data, Boolean replace) throws TracException;
     
-    Boolean deleteAttachment(Integer ticket, String filename);
+    Boolean deleteAttachment(Integer ticket, String filename) throws TracException;
     
-    Object[] getTicketFields();
+    Object[] getTicketFields() throws TracException;
 }
 
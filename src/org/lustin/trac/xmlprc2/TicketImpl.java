@@ -1,14 +1,19 @@
 package org.lustin.trac.xmlprc2;
 
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Hashtable;
 
 public class TicketImpl {
+	/**
+	 * Value of a time that is not set.
+	 */
+	public static final long NO_TIME = Long.MIN_VALUE;
+	
 	private long id = -1;
-	private Calendar createdTime = null;
-	private Calendar changedTime = null;
+	// Times are kept as epoch millis, the Calendar accessors are views
+	private long createdTime = NO_TIME;
+	private long changedTime = NO_TIME;
 	
 	private Hashtable<String, String> attributes = null;
 	
@@ -21,14 +26,16 @@ public class TicketImpl {
 	private VersionImpl version;
 	private MilestoneImpl milestone;
 	private String reporter;
-	private Calendar time;
+	private long time = NO_TIME;
 	private PriorityImpl priority;
+	private int priorityRank = PriorityRanks.DEFAULT.getUnknownRank();
 	private ComponentImpl component;
 	private String description;
 	private String owner;
-	private Calendar changeTime;
+	private long changeTime = NO_TIME;
 	private String cc;
-	private Calendar ts;
+	private long ts = NO_TIME;
+	private String changeToken = null;
 	
 	public TicketImpl() {
 	}
@@ -42,18 +49,34 @@ public class TicketImpl {
 	}
 
 	public Calendar getCreatedTime() {
-		return createdTime;
+		return toCalendar(createdTime);
 	}
 
 	public void setCreatedTime(Calendar createdTime) {
+		this.createdTime = toMillis(createdTime);
+	}
+
+	public long getCreatedTimeMillis() {
+		return createdTime;
+	}
+
+	public void setCreatedTimeMillis(long createdTime) {
 		this.createdTime = createdTime;
 	}
 
 	public Calendar getChangedTime() {
-		return changedTime;
+		return toCalendar(changedTime);
 	}
 
 	public void setChangedTime(Calendar changedTime) {
+		this.changedTime = toMillis(changedTime);
+	}
+
+	public long getChangedTimeMillis() {
+		return changedTime;
+	}
+
+	public void setChangedTimeMillis(long changedTime) {
 		this.changedTime = changedTime;
 	}
 
@@ -106,6 +129,10 @@ public class TicketImpl {
 	}
 
 	public void setTime(Calendar timeValue) {
+		this.time = toMillis(timeValue);
+	}
+
+	public void setTimeMillis(long timeValue) {
 		this.time = timeValue;
 	}
 
@@ -113,8 +140,21 @@ public class TicketImpl {
 		this.component = componentImpl;
 	}
 
+	/**
+	 * Sets the priority, ranked by {@link PriorityRanks#DEFAULT} until
+	 * {@link #setPriorityRank} is called with the server's rank.
+	 */
 	public void setPriority(PriorityImpl priorityImpl) {
 		this.priority = priorityImpl;
+		this.priorityRank = PriorityRanks.DEFAULT.getRank(priorityImpl == null ? null : priorityImpl.getName());
+	}
+
+	public int getPriorityRank() {
+		return priorityRank;
+	}
+
+	public void setPriorityRank(int priorityRank) {
+		this.priorityRank = priorityRank;
 	}
 
 	public void setDescription(String stringValue) {
@@ -126,7 +166,11 @@ public class TicketImpl {
 	}
 
 	public void setChangeTime(Calendar timeValue) {
-		this.changeTime = timeValue; 
+		this.changeTime = toMillis(timeValue);
+	}
+
+	public void setChangeTimeMillis(long timeValue) {
+		this.changeTime = timeValue;
 	}
 
 	public String getSummary() {
@@ -162,6 +206,10 @@ public class TicketImpl {
 	}
 
 	public Calendar getTime() {
+		return toCalendar(time);
+	}
+
+	public long getTimeMillis() {
 		return time;
 	}
 
@@ -182,6 +230,10 @@ public class TicketImpl {
 	}
 
 	public Calendar getChangeTime() {
+		return toCalendar(changeTime);
+	}
+
+	public long getChangeTimeMillis() {
 		return changeTime;
 	}
 
@@ -190,6 +242,10 @@ public class TicketImpl {
 	}
 
 	public Calendar getTs() {
+		return toCalendar(ts);
+	}
+
+	public long getTsMillis() {
 		return ts;
 	}
 
@@ -198,8 +254,46 @@ public class TicketImpl {
 	}
 
 	public void setTS(Calendar timeValue) {
+		this.ts = toMillis(timeValue);
+	}
+
+	public void setTSMillis(long timeValue) {
 		this.ts = timeValue;
 	}
+
+	/**
+	 * Returns the {@code _ts} attribute exactly as the server sent it, or
+	 * null. Sent back with an update, it makes Trac refuse the update if the
+	 * ticket changed in between.
+	 */
+	public String getChangeToken() {
+		return changeToken;
+	}
+
+	public void setChangeToken(String changeToken) {
+		this.changeToken = changeToken;
+	}
+
+	/**
+	 * Returns a new Calendar set to the given time, or null if it is
+	 * {@link #NO_TIME}.
+	 */
+	private static Calendar toCalendar(long time) {
+		if (time == NO_TIME) {
+			return null;
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		return calendar;
+	}
+
+	private static long toMillis(Calendar calendar) {
+		return calendar == null ? NO_TIME : calendar.getTimeInMillis();
+	}
+
+	private static String formatTime(long time) {
+		return time == NO_TIME ? null : TracDateTime.format(time);
+	}
 	
 	@Override
 	public boolean equals(Object o) {
@@ -213,7 +307,7 @@ public class TicketImpl {
 			getVersion().equals(ticket.getVersion()) &&
 			getMilestone().equals(ticket.getMilestone()) &&
 			getReporter().equals(ticket.getReporter()) && 
-			getTime().equals(ticket.getTime()) &&
+			time == ticket.time &&
 			getPriority().equals(ticket.getPriority()) &&
 			getComponent().equals(ticket.getComponent()) && 
 			getDescription().equals(ticket.getDescription()) &&
@@ -226,32 +320,8 @@ public class TicketImpl {
 		return new Comparator<TicketImpl>() {			
 			@Override
 			public int compare(TicketImpl ticket1, TicketImpl ticket2) {
-				int priority1=0;
-				int priority2=0;
-				String priorityString1 = ticket1.getPriority().getName();
-				String priorityString2 = ticket2.getPriority().getName();
-				if("blocker".equals(priorityString1)){
-					priority1 = 1;
-				}else if("critical".equals(priorityString1)){
-					priority1 = 2;
-				}else if("major".equals(priorityString1)){
-					priority1 = 3;
-				}else if("minor".equals(priorityString1)){
-					priority1 = 4;
-				}else if("trivial".equals(priorityString1)){
-					priority1 = 5;
-				}
-				if("blocker".equals(priorityString2)){
-					priority2 = 1;
-				}else if("critical".equals(priorityString2)){
-					priority2 = 2;
-				}else if("major".equals(priorityString2)){
-					priority2 = 3;
-				}else if("minor".equals(priorityString2)){
-					priority2 = 4;
-				}else if("trivial".equals(priorityString2)){
-					priority2 = 5;
-				}
+				int priority1 = ticket1.getPriorityRank();
+				int priority2 = ticket2.getPriorityRank();
 				if(priority1 == priority2) return 0;
 				return (priority1<priority2)?-1:1;
 			}
@@ -259,7 +329,6 @@ public class TicketImpl {
 	}
 	
 	public String toString(){
-		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
 		return "Ticket: " + getId() +
 		"\nSummary: " + getSummary() + 
 		"\nKeywords: " + getKeywords() +
@@ -268,13 +337,13 @@ public class TicketImpl {
 		"\nVersion: " + getVersion() +
 		"\nMilestone:" + getMilestone() +
 		"\nReporter: " + getReporter() + 
-		"\nTime: " + format.format(getTime().getTime()) +
+		"\nTime: " + formatTime(time) +
 		"\nPriority: " + getPriority() +
 		"\nComponent: " + getComponent() +
 		"\nDescription: " + getDescription() +
 		"\nOwner: " + getOwner() +
-		"\nChangeTime: " + format.format(getChangeTime().getTime()) +
+		"\nChangeTime: " + formatTime(changeTime) +
 		"\nCC: " + getCc() +
-		"\nTS: " + format.format(getTs().getTime());
+		"\nTS: " + formatTime(ts);
 	}
 }
@@ -1,7 +1,16 @@
 package org.lustin.trac.xmlprc2;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 public abstract class TicketPropertyImpl {
-	private String name = null;
+	/**
+	 * The canonical instances, by type and name.
+	 */
+	private static final ConcurrentMap<Class<?>, ConcurrentMap<String, TicketPropertyImpl>> registry =
+		new ConcurrentHashMap<Class<?>, ConcurrentMap<String, TicketPropertyImpl>>();
+	
+	private final String name;
 	
 	public TicketPropertyImpl(String name) {
 		this.name = name;
@@ -11,6 +20,58 @@ public abstract class TicketPropertyImpl {
 		return this.name;
 	}
 	
+	/**
+	 * Returns the canonical instance of the given type and name, so that
+	 * all tickets share one object per value. The type must have a public
+	 * constructor taking the name.
+	 *
+	 * @return the shared instance, or null if name is null
+	 */
+	public static <T extends TicketPropertyImpl> T intern(Class<T> type, String name){
+		if(name == null){
+			return null;
+		}
+		ConcurrentMap<String, TicketPropertyImpl> values = registry.get(type);
+		if(values == null){
+			values = new ConcurrentHashMap<String, TicketPropertyImpl>();
+			ConcurrentMap<String, TicketPropertyImpl> existing = registry.putIfAbsent(type, values);
+			if(existing != null){
+				values = existing;
+			}
+		}
+		TicketPropertyImpl value = values.get(name);
+		if(value == null){
+			T created;
+			try {
+				created = type.getConstructor(String.class).newInstance(name);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Cannot create " + type.getName(), e);
+			}
+			value = values.putIfAbsent(name, created);
+			if(value == null){
+				value = created;
+			}
+		}
+		return type.cast(value);
+	}
+	
+	@Override
+	public boolean equals(Object o){
+		if(this == o){
+			return true;
+		}
+		if(o == null || o.getClass() != getClass()){
+			return false;
+		}
+		String other = ((TicketPropertyImpl) o).name;
+		return name == null ? other == null : name.equals(other);
+	}
+	
+	@Override
+	public int hashCode(){
+		return getClass().hashCode() * 31 + (name == null ? 0 : name.hashCode());
+	}
+	
 	public String toString(){
 		return String.format("%s: %s", getClass().getSimpleName(),getName());
 	}
@@ -0,0 +1,136 @@
+package org.lustin.trac.xmlprc2;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A ticket.update or ticket.create call to send with
+ * {@link Trac#sendUpdates}, and its outcome once sent.
+ */
+public class TicketUpdate {
+	/**
+	 * Ticket id of an update creating a new ticket.
+	 */
+	public static final long NEW_TICKET = -1;
+
+	private long id = NEW_TICKET;
+	private String comment = "";
+	private Map<String, String> attributes = new LinkedHashMap<String, String>();
+	private String changeToken = null;
+	private String author = null;
+
+	private boolean sent = false;
+	private TicketImpl ticket = null;
+	private long createdId = NEW_TICKET;
+	private TracException error = null;
+	private boolean conflict = false;
+
+	/**
+	 * Returns the id of the ticket to update, or {@link #NEW_TICKET}.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public String getComment() {
+		return comment;
+	}
+
+	public void setComment(String comment) {
+		this.comment = comment == null ? "" : comment;
+	}
+
+	/**
+	 * Returns the ticket fields to set, e.g. "priority" or "owner". A new
+	 * ticket takes its summary and description from here as well.
+	 */
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+
+	public void setAttributes(Map<String, String> attributes) {
+		this.attributes = new LinkedHashMap<String, String>(attributes);
+	}
+
+	/**
+	 * Returns the {@code _ts} of the ticket as the edit was based on, see
+	 * {@link TicketImpl#getChangeToken()}, or null to update regardless.
+	 */
+	public String getChangeToken() {
+		return changeToken;
+	}
+
+	public void setChangeToken(String changeToken) {
+		this.changeToken = changeToken;
+	}
+
+	/**
+	 * Returns the user recorded as making the change, or null for the
+	 * authenticated user.
+	 */
+	public String getAuthor() {
+		return author;
+	}
+
+	public void setAuthor(String author) {
+		this.author = author;
+	}
+
+	/**
+	 * Returns whether the server answered this call; its outcome is only
+	 * set if so.
+	 */
+	public boolean isSent() {
+		return sent;
+	}
+
+	/**
+	 * Returns the ticket as updated by the server, or null if the call
+	 * failed or created a ticket.
+	 */
+	public TicketImpl getTicket() {
+		return ticket;
+	}
+
+	/**
+	 * Returns the id of the created ticket, or {@link #NEW_TICKET}.
+	 */
+	public long getCreatedId() {
+		return createdId;
+	}
+
+	/**
+	 * Returns why the server refused the call, or null if it succeeded.
+	 */
+	public TracException getError() {
+		return error;
+	}
+
+	/**
+	 * Returns whether the server refused the update because the ticket
+	 * changed after {@link #getChangeToken()}.
+	 */
+	public boolean isConflict() {
+		return conflict;
+	}
+
+	void setUpdated(TicketImpl ticket) {
+		this.sent = true;
+		this.ticket = ticket;
+	}
+
+	void setCreated(long createdId) {
+		this.sent = true;
+		this.createdId = createdId;
+	}
+
+	void setFailed(TracException error, boolean conflict) {
+		this.sent = true;
+		this.error = error;
+		this.conflict = conflict;
+	}
+}
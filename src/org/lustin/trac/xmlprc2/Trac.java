@@ -2,11 +2,9 @@ package org.lustin.trac.xmlprc2;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
+import java.util.Locale;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -19,22 +17,109 @@ import android.content.Context;
 import com.thetransactioncompany.jsonrpc2.client.JSONRPC2Session;
 
 public class Trac {
+	/**
+	 * Default number of ticket.get calls packed into a single system.multicall.
+	 */
+	public static final int DEFAULT_MULTICALL_CHUNK_SIZE = 50;
+	
+	/**
+	 * Part of the error Trac refuses an update with when the change token is
+	 * outdated: "Ticket has been updated since last get()." Trac reports it
+	 * with a generic error code, so the message is all there is to go by.
+	 */
+	private static final String CONFLICT_MESSAGE = "updated since last get()";
+	
 	private JSONRPC2Session session = null;
 	private TrackerDynamicProxy tracker = null;
 	private Context context = null;
+	private int multicallChunkSize = DEFAULT_MULTICALL_CHUNK_SIZE;
+	private String serverKey = null;
 	
 	public Trac(Context context, String url, String username, String password) {
 		try {
 			this.context = context;
+			this.serverKey = url + "\n" + username + "\n" + password;
 			this.session = new JSONRPC2Session(new URL(url), username, password);
+			this.session.streamResponses(true);
+			this.session.acceptCompressedResponses(true);
 			this.tracker = new TrackerDynamicProxy(this.session);
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Returns how many tickets are fetched per system.multicall request.
+	 */
+	public int getMulticallChunkSize() {
+		return multicallChunkSize;
+	}
+	
+	/**
+	 * Sets how many tickets are fetched per system.multicall request. A value
+	 * of 1 or less disables batching and fetches every ticket on its own
+	 * request.
+	 */
+	public void setMulticallChunkSize(int multicallChunkSize) {
+		this.multicallChunkSize = multicallChunkSize;
+	}
+	
+	/**
+	 * Identifies the server and credentials this instance talks to, so
+	 * instances for the same account can share cached data.
+	 */
+	public String getServerKey() {
+		return serverKey;
+	}
+	
+	/**
+	 * Returns the server's priority order from the shared
+	 * {@link TracMetadataCache}. Falls back to {@link PriorityRanks#DEFAULT}
+	 * if the metadata was never loaded and can't be loaded now.
+	 */
+	public PriorityRanks getPriorityRanks() {
+		try {
+			return TracMetadataCache.getShared(this).get().getPriorityRanks();
+		} catch (TracException e) {
+			e.printStackTrace();
+			return PriorityRanks.DEFAULT;
+		}
+	}
+	
+	/**
+	 * Returns whether calls to the server are currently refused because it
+	 * kept failing with network errors, see {@link CircuitBreaker}.
+	 */
+	public boolean isCircuitOpen() {
+		return tracker.getCircuitBreaker().isOpen();
+	}
+	
+	/**
+	 * Loads the eight ticket enumerations with a single system.multicall.
+	 * Use {@link TracMetadataCache} rather than calling this directly.
+	 */
+	@SuppressWarnings("unchecked")
+	public TracMetadata loadMetadata() throws TracException {
+		JSONArray signatures = new JSONArray();
+		for(String method: TracMetadata.METHODS){
+			signatures.add(signature(method, new JSONArray()));
+		}
+		JSONArray results = multicall(signatures);
+		List<List<String>> names = new ArrayList<List<String>>(results.size());
+		for(Object result: results){
+			JSONArray values = unwrapMulticallResult(result);
+			List<String> list = new ArrayList<String>(values == null ? 0 : values.size());
+			if(values != null){
+				for(Object value: values){
+					list.add((String) value);
+				}
+			}
+			names.add(list);
+		}
+		return new TracMetadata(names, System.currentTimeMillis());
+	}
 	
-	public List<FilterImpl> getSearchFilters(){
+	public List<FilterImpl> getSearchFilters() throws TracException {
 		List<FilterImpl> retObj = new ArrayList<FilterImpl>();
 		Search search = (Search) tracker.newInstance(this.context.getClassLoader(), Search.class);
         JSONArray filters = search.getSearchFilters();
@@ -51,7 +136,7 @@ public class Trac {
 	
 //	public List<SearchResultImpl> performSearch(String query, List<FilterImpl> filters){}
 //	
-	public ApiVersionImpl systemGetAPIVersion(){
+	public ApiVersionImpl systemGetAPIVersion() throws TracException {
 		org.lustin.trac.xmlprc2.System system = (org.lustin.trac.xmlprc2.System) tracker.newInstance(this.context.getClassLoader(), org.lustin.trac.xmlprc2.System.class);
 		JSONArray versions = system.getAPIVersion();
 		ApiVersionImpl apiVersion = new ApiVersionImpl();
@@ -86,11 +171,195 @@ public class Trac {
 //	
 //	//public ? systemMultiCall(Signatures);
 //	
-	public TicketImpl getTicket(long id){
+	public TicketImpl getTicket(long id) throws TracException {
 		Ticket ticket = (Ticket) tracker.newInstance(this.context.getClassLoader(),Ticket.class);
+		return parseTicket(ticket.get(id), getPriorityRanks());
+	}
+	
+	/**
+	 * Fetches the given tickets, packing up to {@link #getMulticallChunkSize()}
+	 * ticket.get calls into each system.multicall request. The returned list
+	 * keeps the order of {@code ids}.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<TicketImpl> getTickets(List<Long> ids) throws TracException {
+		List<TicketImpl> tickets = new ArrayList<TicketImpl>(ids.size());
+		if(ids.isEmpty()){
+			return tickets;
+		}
+		PriorityRanks ranks = getPriorityRanks();
+		if(multicallChunkSize <= 1){
+			for(Long id: ids){
+				Ticket ticket = (Ticket) tracker.newInstance(this.context.getClassLoader(),Ticket.class);
+				tickets.add(parseTicket(ticket.get(id), ranks));
+			}
+			return tickets;
+		}
+		
+		for(int start = 0; start < ids.size(); start += multicallChunkSize){
+			int end = Math.min(ids.size(), start + multicallChunkSize);
+			JSONArray signatures = new JSONArray();
+			for(int i = start; i < end; i++){
+				JSONArray params = new JSONArray();
+				params.add(ids.get(i));
+				signatures.add(signature("ticket.get", params));
+			}
+			
+			for(Object result: multicall(signatures)){
+				tickets.add(parseTicket(unwrapMulticallResult(result), ranks));
+			}
+		}
+		return tickets;
+	}
+	
+	/**
+	 * Sends the given ticket updates and creations, packing up to
+	 * {@link #getMulticallChunkSize()} of them into each system.multicall, and
+	 * records the outcome on each. Trac refuses an update carrying a change
+	 * token if the ticket changed since; that is reported as a conflict.
+	 * 
+	 * @throws TracException if a multicall failed as a whole. Updates sent in
+	 *                       earlier multicalls have their outcome set.
+	 */
+	@SuppressWarnings("unchecked")
+	public void sendUpdates(List<TicketUpdate> updates) throws TracException {
+		PriorityRanks ranks = null;
+		int chunkSize = Math.max(1, multicallChunkSize);
+		for(int start = 0; start < updates.size(); start += chunkSize){
+			List<TicketUpdate> chunk = updates.subList(start, Math.min(updates.size(), start + chunkSize));
+			JSONArray signatures = new JSONArray();
+			for(TicketUpdate update: chunk){
+				signatures.add(signature(update));
+			}
+			
+			JSONArray results = multicall(signatures);
+			for(int i = 0; i < chunk.size(); i++){
+				TicketUpdate update = chunk.get(i);
+				try {
+					Object result = unwrapMulticallEntry(results.get(i));
+					if(update.getId() == TicketUpdate.NEW_TICKET){
+						update.setCreated(((Number) result).longValue());
+					}else{
+						if(ranks == null){
+							ranks = getPriorityRanks();
+						}
+						update.setUpdated(parseTicket((JSONArray) result, ranks));
+					}
+				} catch (TracException e) {
+					update.setFailed(e, isConflict(update, e));
+				} catch (ClassCastException e) {
+					update.setFailed(new TracException("Unexpected result of " + signatures.get(i), e), false);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns whether Trac refused the update because the ticket changed
+	 * since the change token it carried.
+	 */
+	private static boolean isConflict(TicketUpdate update, TracException e){
+		String message = e.getMessage();
+		return update.getChangeToken() != null && message != null
+				&& message.toLowerCase(Locale.ENGLISH).contains(CONFLICT_MESSAGE);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static JSONObject signature(TicketUpdate update){
+		JSONObject attributes = new JSONObject();
+		attributes.putAll(update.getAttributes());
+		JSONArray params = new JSONArray();
+		if(update.getId() == TicketUpdate.NEW_TICKET){
+			Object summary = attributes.remove("summary");
+			Object description = attributes.remove("description");
+			if(update.getAuthor() != null && !attributes.containsKey("reporter")){
+				attributes.put("reporter", update.getAuthor());
+			}
+			params.add(summary == null ? "" : summary);
+			params.add(description == null ? "" : description);
+			params.add(attributes);
+			params.add(Boolean.FALSE);
+			return signature("ticket.create", params);
+		}
+		if(update.getChangeToken() != null){
+			attributes.put("_ts", update.getChangeToken());
+		}
+		params.add(update.getId());
+		params.add(update.getComment());
+		params.add(attributes);
+		params.add(Boolean.FALSE);
+		if(update.getAuthor() != null){
+			params.add(update.getAuthor());
+		}
+		return signature("ticket.update", params);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static JSONObject signature(String method, JSONArray params){
+		JSONObject signature = new JSONObject();
+		signature.put("method", method);
+		signature.put("params", params);
+		return signature;
+	}
+	
+	/**
+	 * Sends the given calls as one system.multicall and returns one result
+	 * entry per call, in order.
+	 */
+	private JSONArray multicall(JSONArray signatures) throws TracException {
+		org.lustin.trac.xmlprc2.System system = (org.lustin.trac.xmlprc2.System) tracker.newInstance(this.context.getClassLoader(), org.lustin.trac.xmlprc2.System.class);
+		JSONArray results = system.multicall(signatures);
+		if(results == null || results.size() != signatures.size()){
+			throw new TracException("system.multicall returned " + (results == null ? 0 : results.size()) + " results, expected " + signatures.size());
+		}
+		return results;
+	}
+	
+	/**
+	 * Extracts the ticket.get result from one system.multicall entry. Trac
+	 * answers JSON multicalls with one response object per call, while the
+	 * XML-RPC flavour wraps every result in a single element array.
+	 */
+	private JSONArray unwrapMulticallResult(Object entry) throws TracException {
+		if(entry instanceof JSONObject){
+			return (JSONArray) unwrapMulticallEntry(entry);
+		}
+		JSONArray result = (JSONArray) entry;
+		if(result.size() == 1 && result.get(0) instanceof JSONArray){
+			return (JSONArray) result.get(0);
+		}
+		return result;
+	}
+	
+	/**
+	 * Extracts the result of any call from one system.multicall entry.
+	 */
+	private Object unwrapMulticallEntry(Object entry) throws TracException {
+		if(entry instanceof JSONObject){
+			JSONObject response = (JSONObject) entry;
+			Object error = response.get("error");
+			if(error != null){
+				Object message = (error instanceof JSONObject) ? ((JSONObject) error).get("message") : error;
+				throw new TracException(String.valueOf(message));
+			}
+			return response.get("result");
+		}
+		if(entry instanceof JSONArray && ((JSONArray) entry).size() == 1){
+			return ((JSONArray) entry).get(0);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Maps a ticket.get result onto a ticket. Package-private so the
+	 * benchmarks can measure it without a server.
+	 */
+	static TicketImpl parseTicket(JSONArray result, PriorityRanks ranks) throws TracException {
+		if(result == null || result.size() < 4){
+			throw new TracException("Invalid ticket.get result: " + result);
+		}
 		TicketImpl ticketImpl = new TicketImpl();
 		
-		JSONArray result = ticket.get(id);
 		Long returnedId = (Long) result.get(0);
 //		JSONObject time_created = (JSONObject) result.get(1);
 //		JSONObject time_changed = (JSONObject) result.get(2);
@@ -99,19 +368,15 @@ public class Trac {
 		
 		for(Object key: attributes.keySet()){
 			String stringValue = null;
-			Calendar timeValue = Calendar.getInstance();
+			long timeValue = TicketImpl.NO_TIME;
 			Object value = attributes.get(key);
 			
 			if(value instanceof String){
 				stringValue = (String) value;
 			}else{
-				SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-				JSONObject object = (JSONObject) value;
-				String date = (String)((JSONArray)(object.get("__jsonclass__"))).get(1);
-				try {
-					timeValue.setTime(format.parse(date));
-				} catch (ParseException e) {
-					e.printStackTrace();
+				long time = TracDateTime.parse(value);
+				if(time != TracDateTime.INVALID){
+					timeValue = time;
 				}
 			}
 			if("summary".equals(key)){
@@ -119,121 +384,132 @@ public class Trac {
 			}else if("keywords".equals(key)){
 				ticketImpl.setKeywords(stringValue);
 			}else if("status".equals(key)){
-				ticketImpl.setStatus(new StatusImpl(stringValue));
+				ticketImpl.setStatus(StatusImpl.valueOf(stringValue));
 			}else if("resolution".equals(key)){
-				ticketImpl.setResolution(new ResolutionImpl(stringValue));
+				ticketImpl.setResolution(ResolutionImpl.valueOf(stringValue));
 			}else if("type".equals(key)){
-				ticketImpl.setType(new TypeImpl(stringValue));
+				ticketImpl.setType(TypeImpl.valueOf(stringValue));
 			}else if("version".equals(key)){
-				ticketImpl.setVersion(new VersionImpl(stringValue));
+				ticketImpl.setVersion(VersionImpl.valueOf(stringValue));
 			}else if("milestone".equals(key)){
-				ticketImpl.setMilestone(new MilestoneImpl(stringValue));
+				ticketImpl.setMilestone(MilestoneImpl.valueOf(stringValue));
 			}else if("reporter".equals(key)){
 				ticketImpl.setReporter(stringValue);
 			}else if("time".equals(key)){
-				ticketImpl.setTime(timeValue);
+				ticketImpl.setTimeMillis(timeValue);
 			}else if("component".equals(key)){
-				ticketImpl.setComponent(new ComponentImpl(stringValue));
+				ticketImpl.setComponent(ComponentImpl.valueOf(stringValue));
 			}else if("priority".equals(key)){				
-				ticketImpl.setPriority(new PriorityImpl(stringValue));
+				ticketImpl.setPriority(PriorityImpl.valueOf(stringValue));
 			}else if("description".equals(key)){
 				ticketImpl.setDescription(stringValue);
 			}else if("owner".equals(key)){
 				ticketImpl.setOwner(stringValue);
 			}else if("changetime".equals(key)){
-				ticketImpl.setChangeTime(timeValue);
+				ticketImpl.setChangeTimeMillis(timeValue);
 			}else if("cc".equals(key)){
 				ticketImpl.setCC(stringValue);
 			}else if("_ts".equals(key)){
-				ticketImpl.setTS(timeValue);
+				if(stringValue != null){
+					// Trac 0.12 and later send the change time in microseconds
+					ticketImpl.setChangeToken(stringValue);
+					try {
+						ticketImpl.setTSMillis(Long.parseLong(stringValue) / 1000);
+					} catch (NumberFormatException e) {
+					}
+				}else{
+					ticketImpl.setTSMillis(timeValue);
+				}
 			}
 		}
+		PriorityImpl priority = ticketImpl.getPriority();
+		ticketImpl.setPriorityRank(ranks.getRank(priority == null ? null : priority.getName()));
 		return ticketImpl;
 	}
 	
-	public List<ComponentImpl> getAllComponents(){
+	public List<ComponentImpl> getAllComponents() throws TracException {
 		Ticket.Component component = (Ticket.Component) tracker.newInstance(this.context.getClassLoader(), Ticket.Component.class);
 		List<ComponentImpl> components = new ArrayList<ComponentImpl>();
 		JSONArray result = component.getAll();
 		for(int i = 0; i<result.size();i++){
-			ComponentImpl componentImpl = new ComponentImpl((String)result.get(i));
+			ComponentImpl componentImpl = ComponentImpl.valueOf((String)result.get(i));
 			components.add(componentImpl);			
 		}
 		return components;
 	}
 
-	public List<MilestoneImpl> getAllMilestones(){
+	public List<MilestoneImpl> getAllMilestones() throws TracException {
 		Ticket.Milestone milestone = (Ticket.Milestone) tracker.newInstance(this.context.getClassLoader(), Ticket.Milestone.class);
 		List<MilestoneImpl> milestones = new ArrayList<MilestoneImpl>();
 		JSONArray result = milestone.getAll();
 		for(int i = 0; i<result.size();i++){
-			MilestoneImpl milestoneImpl = new MilestoneImpl((String)result.get(i));
+			MilestoneImpl milestoneImpl = MilestoneImpl.valueOf((String)result.get(i));
 			milestones.add(milestoneImpl);			
 		}
 		return milestones;
 	}
 
-	public List<PriorityImpl> getAllPriorities(){
+	public List<PriorityImpl> getAllPriorities() throws TracException {
 		Ticket.Priority priority = (Ticket.Priority) tracker.newInstance(this.context.getClassLoader(), Ticket.Priority.class);
 		List<PriorityImpl> priorities = new ArrayList<PriorityImpl>();
 		JSONArray result = priority.getAll();
 		for(int i = 0; i<result.size();i++){
-			PriorityImpl priorityImpl = new PriorityImpl((String)result.get(i));
+			PriorityImpl priorityImpl = PriorityImpl.valueOf((String)result.get(i));
 			priorities.add(priorityImpl);			
 		}
 		return priorities;
 	}
 
-	public List<ResolutionImpl> getAllResolutions(){
+	public List<ResolutionImpl> getAllResolutions() throws TracException {
 		Ticket.Resolution resolution = (Ticket.Resolution) tracker.newInstance(this.context.getClassLoader(), Ticket.Resolution.class);
 		List<ResolutionImpl> resolutions = new ArrayList<ResolutionImpl>();
 		JSONArray result = resolution.getAll();
 		for(int i = 0; i<result.size();i++){
-			ResolutionImpl resolutionImpl = new ResolutionImpl((String)result.get(i));
+			ResolutionImpl resolutionImpl = ResolutionImpl.valueOf((String)result.get(i));
 			resolutions.add(resolutionImpl);			
 		}
 		return resolutions;
 	}
 	
-	public List<SeverityImpl> getAllSeverities(){
+	public List<SeverityImpl> getAllSeverities() throws TracException {
 		Ticket.Severity severity = (Ticket.Severity) tracker.newInstance(this.context.getClassLoader(), Ticket.Severity.class);
 		List<SeverityImpl> severities = new ArrayList<SeverityImpl>();
 		JSONArray result = severity.getAll();
 		for(int i = 0; i<result.size();i++){
-			SeverityImpl severityImpl = new SeverityImpl((String)result.get(i));
+			SeverityImpl severityImpl = SeverityImpl.valueOf((String)result.get(i));
 			severities.add(severityImpl);			
 		}
 		return severities;
 	}
 	
-	public List<TypeImpl> getAllTypes(){
+	public List<TypeImpl> getAllTypes() throws TracException {
 		Ticket.Type type = (Ticket.Type) tracker.newInstance(this.context.getClassLoader(), Ticket.Type.class);
 		List<TypeImpl> types = new ArrayList<TypeImpl>();
 		JSONArray result = type.getAll();
 		for(int i = 0; i<result.size();i++){
-			TypeImpl typeImpl = new TypeImpl((String)result.get(i));
+			TypeImpl typeImpl = TypeImpl.valueOf((String)result.get(i));
 			types.add(typeImpl);			
 		}
 		return types;
 	}
 	
-	public List<VersionImpl> getAllVersions(){
+	public List<VersionImpl> getAllVersions() throws TracException {
 		Ticket.Version version = (Ticket.Version) tracker.newInstance(this.context.getClassLoader(), Ticket.Version.class);
 		List<VersionImpl> versions = new ArrayList<VersionImpl>();
 		JSONArray result = version.getAll();
 		for(int i = 0; i<result.size();i++){
-			VersionImpl versionImpl = new VersionImpl((String)result.get(i));
+			VersionImpl versionImpl = VersionImpl.valueOf((String)result.get(i));
 			versions.add(versionImpl);			
 		}
 		return versions;
 	}
 
-	public List<StatusImpl> getAllStatus(){
+	public List<StatusImpl> getAllStatus() throws TracException {
 		Ticket.Status status = (Ticket.Status) tracker.newInstance(this.context.getClassLoader(), Ticket.Status.class);
 		List<StatusImpl> statuss = new ArrayList<StatusImpl>();
 		JSONArray result = status.getAll();
 		for(int i = 0; i<result.size();i++){
-			StatusImpl statusImpl = new StatusImpl((String)result.get(i));
+			StatusImpl statusImpl = StatusImpl.valueOf((String)result.get(i));
 			statuss.add(statusImpl);			
 		}
 		return statuss;
@@ -242,8 +518,15 @@ public class Trac {
 	
 		
 	public List<TicketImpl> query(String query) throws TracException {
+		return getTickets(queryIds(query));
+	}
+	
+	/**
+	 * Returns the ids of the tickets matching the given query, without
+	 * fetching the tickets themselves.
+	 */
+	public List<Long> queryIds(String query) throws TracException {
 		Ticket ticketQuery = (Ticket) tracker.newInstance(this.context.getClassLoader(), Ticket.class);
-		List<TicketImpl> tickets = new ArrayList<TicketImpl>();
 		
 		JSONArray result = null;
 //		if(query == null || "".equals(query)){
@@ -252,14 +535,23 @@ public class Trac {
 //			result = ticketQuery.query(query);
 //		}
 		result = ticketQuery.query(query);
+		return toIds(result);
+	}
+
+	/**
+	 * Returns the ids of the tickets changed since the given time, in epoch
+	 * millis.
+	 */
+	public List<Long> getRecentChanges(long since) throws TracException {
+		Ticket ticket = (Ticket) tracker.newInstance(this.context.getClassLoader(), Ticket.class);
+		return toIds(ticket.getRecentChanges(TracDateTime.toJSON(since)));
+	}
+	
+	private static List<Long> toIds(JSONArray result){
+		List<Long> ids = new ArrayList<Long>(result.size());
 		for(int i = 0; i<result.size();i++){
-			long id = (Long) result.get(i);
-			TicketImpl ticketImpl = getTicket(id);
-			tickets.add(ticketImpl);
+			ids.add((Long) result.get(i));
 		}
-		
-		return tickets;
+		return ids;
 	}
-//
-//	public List<TicketImpl> getRecentChanges(Calendar since){}
 }
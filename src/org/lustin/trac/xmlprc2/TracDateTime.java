@@ -0,0 +1,202 @@
+package org.lustin.trac.xmlprc2;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Converts between epoch millis and the datetime values of Trac's JSON-RPC,
+ * {"__jsonclass__":["datetime","yyyy-MM-ddTHH:mm:ss"]}.
+ *
+ * Trac sends these in UTC. Parsing works on the characters directly, without
+ * formatters or Calendars, and also accepts a fraction of a second and a "Z"
+ * or "+HH:MM" offset.
+ */
+public final class TracDateTime {
+
+	/**
+	 * Returned for values that are not a datetime.
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+	private TracDateTime() {
+	}
+
+	/**
+	 * Parses a {"__jsonclass__":["datetime", ...]} object.
+	 *
+	 * @return the epoch millis, or {@link #INVALID}
+	 */
+	public static long parse(Object value){
+		if(!(value instanceof JSONObject)){
+			return INVALID;
+		}
+		Object jsonClass = ((JSONObject) value).get("__jsonclass__");
+		if(!(jsonClass instanceof JSONArray)){
+			return INVALID;
+		}
+		JSONArray array = (JSONArray) jsonClass;
+		if(array.size() < 2 || !"datetime".equals(array.get(0)) || !(array.get(1) instanceof String)){
+			return INVALID;
+		}
+		return parse((String) array.get(1));
+	}
+
+	/**
+	 * Parses an ISO-8601 date and time, yyyy-MM-ddTHH:mm:ss[.SSS][Z|+HH:MM|-HH:MM].
+	 * A value without an offset is taken as UTC.
+	 *
+	 * @return the epoch millis, or {@link #INVALID}
+	 */
+	public static long parse(String s){
+		int length = s.length();
+		if(length < 19 || s.charAt(4) != '-' || s.charAt(7) != '-'
+				|| (s.charAt(10) != 'T' && s.charAt(10) != ' ')
+				|| s.charAt(13) != ':' || s.charAt(16) != ':'){
+			return INVALID;
+		}
+		int year = digits(s, 0, 4);
+		int month = digits(s, 5, 2);
+		int day = digits(s, 8, 2);
+		int hour = digits(s, 11, 2);
+		int minute = digits(s, 14, 2);
+		int second = digits(s, 17, 2);
+		if(year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60){
+			return INVALID;
+		}
+
+		int i = 19;
+		int millis = 0;
+		if(i < length && s.charAt(i) == '.'){
+			i++;
+			int scale = 100;
+			int start = i;
+			while(i < length && s.charAt(i) >= '0' && s.charAt(i) <= '9'){
+				millis += (s.charAt(i) - '0') * scale;
+				scale /= 10;
+				i++;
+			}
+			if(i == start){
+				return INVALID;
+			}
+		}
+
+		int offsetMinutes = 0;
+		if(i < length){
+			char sign = s.charAt(i);
+			if(sign == 'Z' && i + 1 == length){
+				i++;
+			}else if((sign == '+' || sign == '-') && i + 6 == length && s.charAt(i + 3) == ':'){
+				int offsetHours = digits(s, i + 1, 2);
+				int offsetMins = digits(s, i + 4, 2);
+				if(offsetHours < 0 || offsetMins < 0){
+					return INVALID;
+				}
+				offsetMinutes = offsetHours * 60 + offsetMins;
+				if(sign == '-'){
+					offsetMinutes = -offsetMinutes;
+				}
+				i += 6;
+			}else{
+				return INVALID;
+			}
+		}
+
+		long days = daysFromCivil(year, month, day);
+		return days * MILLIS_PER_DAY
+				+ ((hour * 60L + minute - offsetMinutes) * 60L + second) * 1000L
+				+ millis;
+	}
+
+	/**
+	 * Formats epoch millis as yyyy-MM-ddTHH:mm:ss in UTC.
+	 */
+	public static String format(long time){
+		long days = floorDiv(time, MILLIS_PER_DAY);
+		int secondOfDay = (int) ((time - days * MILLIS_PER_DAY) / 1000);
+
+		// Inverse of daysFromCivil
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int dayOfEra = (int) (z - era * 146097);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		char[] chars = new char[19];
+		put(chars, 0, (int) year, 4);
+		chars[4] = '-';
+		put(chars, 5, month, 2);
+		chars[7] = '-';
+		put(chars, 8, day, 2);
+		chars[10] = 'T';
+		put(chars, 11, secondOfDay / 3600, 2);
+		chars[13] = ':';
+		put(chars, 14, secondOfDay / 60 % 60, 2);
+		chars[16] = ':';
+		put(chars, 17, secondOfDay % 60, 2);
+		return new String(chars);
+	}
+
+	/**
+	 * Encodes epoch millis as a {"__jsonclass__":["datetime", ...]} object.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject toJSON(long time){
+		JSONArray jsonClass = new JSONArray();
+		jsonClass.add("datetime");
+		jsonClass.add(format(time));
+		JSONObject object = new JSONObject();
+		object.put("__jsonclass__", jsonClass);
+		return object;
+	}
+
+	/**
+	 * Days since 1970-01-01 of a proleptic Gregorian date.
+	 */
+	private static long daysFromCivil(int year, int month, int day){
+		if(month <= 2){
+			year--;
+		}
+		long era = floorDiv(year, 400);
+		int yearOfEra = (int) (year - era * 400);
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static long floorDiv(long x, long y){
+		long q = x / y;
+		if((x % y != 0) && ((x ^ y) < 0)){
+			q--;
+		}
+		return q;
+	}
+
+	/**
+	 * Reads a fixed number of decimal digits, or returns -1.
+	 */
+	private static int digits(String s, int start, int count){
+		int value = 0;
+		for(int i = start; i < start + count; i++){
+			char c = s.charAt(i);
+			if(c < '0' || c > '9'){
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static void put(char[] chars, int start, int value, int count){
+		for(int i = start + count - 1; i >= start; i--){
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
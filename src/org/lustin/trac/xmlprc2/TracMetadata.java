@@ -0,0 +1,107 @@
+package org.lustin.trac.xmlprc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of a Trac server's ticket enumerations: components, milestones,
+ * priorities, resolutions, severities, types, versions and statuses.
+ */
+public class TracMetadata {
+	/**
+	 * The RPC methods the enumerations are loaded with, in constructor order.
+	 */
+	static final String[] METHODS = {
+		"ticket.component.getAll",
+		"ticket.milestone.getAll",
+		"ticket.priority.getAll",
+		"ticket.resolution.getAll",
+		"ticket.severity.getAll",
+		"ticket.type.getAll",
+		"ticket.version.getAll",
+		"ticket.status.getAll"
+	};
+
+	private final List<ComponentImpl> components;
+	private final List<MilestoneImpl> milestones;
+	private final List<PriorityImpl> priorities;
+	private final List<ResolutionImpl> resolutions;
+	private final List<SeverityImpl> severities;
+	private final List<TypeImpl> types;
+	private final List<VersionImpl> versions;
+	private final List<StatusImpl> statuses;
+	private final PriorityRanks priorityRanks;
+	private final long loadTime;
+
+	/**
+	 * @param names    the value names returned by each of {@link #METHODS}
+	 * @param loadTime when the values were loaded, in epoch millis
+	 */
+	TracMetadata(List<List<String>> names, long loadTime) {
+		this.components = toList(ComponentImpl.class, names.get(0));
+		this.milestones = toList(MilestoneImpl.class, names.get(1));
+		this.priorities = toList(PriorityImpl.class, names.get(2));
+		this.resolutions = toList(ResolutionImpl.class, names.get(3));
+		this.severities = toList(SeverityImpl.class, names.get(4));
+		this.types = toList(TypeImpl.class, names.get(5));
+		this.versions = toList(VersionImpl.class, names.get(6));
+		this.statuses = toList(StatusImpl.class, names.get(7));
+		this.priorityRanks = new PriorityRanks(names.get(2));
+		this.loadTime = loadTime;
+	}
+
+	private static <T extends TicketPropertyImpl> List<T> toList(Class<T> type, List<String> names) {
+		List<T> values = new ArrayList<T>(names.size());
+		for(String name: names){
+			values.add(TicketPropertyImpl.intern(type, name));
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	public List<ComponentImpl> getComponents() {
+		return components;
+	}
+
+	public List<MilestoneImpl> getMilestones() {
+		return milestones;
+	}
+
+	public List<PriorityImpl> getPriorities() {
+		return priorities;
+	}
+
+	public List<ResolutionImpl> getResolutions() {
+		return resolutions;
+	}
+
+	public List<SeverityImpl> getSeverities() {
+		return severities;
+	}
+
+	public List<TypeImpl> getTypes() {
+		return types;
+	}
+
+	public List<VersionImpl> getVersions() {
+		return versions;
+	}
+
+	public List<StatusImpl> getStatuses() {
+		return statuses;
+	}
+
+	/**
+	 * Returns the ranks of {@link #getPriorities()}, in server order.
+	 */
+	public PriorityRanks getPriorityRanks() {
+		return priorityRanks;
+	}
+
+	/**
+	 * Returns when this snapshot was loaded, in epoch millis.
+	 */
+	public long getLoadTime() {
+		return loadTime;
+	}
+}
@@ -0,0 +1,147 @@
+package org.lustin.trac.xmlprc2;
+
+import java.lang.System;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+/**
+ * Keeps a server's {@link TracMetadata} for a time-to-live. Once it expires,
+ * readers keep getting the old snapshot while a new one is loaded in the
+ * background. Instances for the same account share one cache, see
+ * {@link #getShared}.
+ */
+public class TracMetadataCache {
+	private static final String TAG = TracMetadataCache.class.getName();
+
+	/**
+	 * Default time a snapshot is used before it is reloaded, one hour.
+	 */
+	public static final long DEFAULT_TTL = 60 * 60 * 1000L;
+
+	/**
+	 * Notified on the loading thread whenever a new snapshot is loaded.
+	 */
+	public static interface Listener {
+		void metadataLoaded(TracMetadata metadata);
+	}
+
+	private static final Map<String, TracMetadataCache> shared = new HashMap<String, TracMetadataCache>();
+
+	private final Trac trac;
+	private final long ttl;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private TracMetadata metadata = null;
+	private boolean refreshing = false;
+
+	/**
+	 * Returns the cache shared by all instances with the same
+	 * {@link Trac#getServerKey() server key}. It loads through the first
+	 * instance it was asked for.
+	 */
+	public static TracMetadataCache getShared(Trac trac) {
+		synchronized (shared) {
+			TracMetadataCache cache = shared.get(trac.getServerKey());
+			if(cache == null){
+				cache = new TracMetadataCache(trac, DEFAULT_TTL);
+				shared.put(trac.getServerKey(), cache);
+			}
+			return cache;
+		}
+	}
+
+	public TracMetadataCache(Trac trac, long ttl) {
+		this.trac = trac;
+		this.ttl = ttl;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the cached metadata, loading it on the calling thread if there
+	 * is none yet. Expired metadata is returned as is and reloaded in the
+	 * background.
+	 */
+	public TracMetadata get() throws TracException {
+		TracMetadata current;
+		synchronized (this) {
+			current = metadata;
+		}
+		if(current == null){
+			return load();
+		}
+		if(isExpired(current)){
+			refreshInBackground();
+		}
+		return current;
+	}
+
+	/**
+	 * Returns the cached metadata without blocking, or null if there is none
+	 * yet. Missing or expired metadata is loaded in the background; register
+	 * a {@link Listener} to be told when it arrives.
+	 */
+	public TracMetadata peek() {
+		TracMetadata current;
+		synchronized (this) {
+			current = metadata;
+		}
+		if(current == null || isExpired(current)){
+			refreshInBackground();
+		}
+		return current;
+	}
+
+	private boolean isExpired(TracMetadata current) {
+		return System.currentTimeMillis() - current.getLoadTime() >= ttl;
+	}
+
+	/**
+	 * Starts loading new metadata in the background, unless a load is
+	 * already running.
+	 */
+	public void refreshInBackground() {
+		synchronized (this) {
+			if(refreshing){
+				return;
+			}
+			refreshing = true;
+		}
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					load();
+				} catch (TracException e) {
+					Log.w(TAG, "Metadata refresh failed, keeping the old snapshot", e);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Metadata refresh failed, keeping the old snapshot", e);
+				} finally {
+					synchronized (TracMetadataCache.this) {
+						refreshing = false;
+					}
+				}
+			}
+		}, "TracMetadata").start();
+	}
+
+	private TracMetadata load() throws TracException {
+		TracMetadata loaded = trac.loadMetadata();
+		synchronized (this) {
+			metadata = loaded;
+		}
+		for(Listener listener: listeners){
+			listener.metadataLoaded(loaded);
+		}
+		return loaded;
+	}
+}
@@ -13,20 +13,58 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
 import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
 import com.thetransactioncompany.jsonrpc2.client.JSONRPC2Session;
 import com.thetransactioncompany.jsonrpc2.client.JSONRPC2SessionException;
+import com.thetransactioncompany.jsonrpc2.client.RPCStatistics;
 
 
 public class TrackerDynamicProxy
 {
+    /**
+     * Default number of attempts for a read call failing with network
+     * errors.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    
+    /**
+     * Base delay in milliseconds before retrying a read call. It doubles
+     * with every attempt, up to {@link #MAX_RETRY_DELAY}, and is jittered.
+     */
+    public static final long RETRY_DELAY = 500;
+    
+    /**
+     * Upper bound in milliseconds of the delay between attempts.
+     */
+    public static final long MAX_RETRY_DELAY = 4000;
+    
+    /**
+     * Calls that only read, and so may be sent again when the network failed
+     * before their answer arrived. All "*.getAll" calls read as well.
+     */
+    private static final Set<String> READ_METHODS = new HashSet<String>( Arrays.asList(
+            "ticket.get", "ticket.query", "ticket.getRecentChanges",
+            "system.getAPIVersion", "system.listMethods", "search.getSearchFilters" ) );
     
     private final JSONRPC2Session         client;
+    private final CircuitBreaker          breaker;
+    private int                           maxAttempts = DEFAULT_MAX_ATTEMPTS;
     //private final TypeConverterFactory typeConverterFactory;
     private boolean                    objectMethodLocal;
     
+    /**
+     * Proxy instances already created, per interface.
+     */
+    private final Map<Class<?>, Object> proxies = new HashMap<Class<?>, Object>();
+    
     /**
      * Creates a new instance.
      * 
@@ -61,6 +99,8 @@ public class TrackerDynamicProxy
     {
         //this( client, new TypeConverterFactoryImpl() );
         this.client = client;
+        this.client.disableStrictParsing(true);
+        this.breaker = CircuitBreaker.getShared( client.getURL().toString() );
     }
     
     
@@ -73,6 +113,33 @@ public class TrackerDynamicProxy
         return client;
     }
     
+    /**
+     * Returns the circuit breaker guarding the server, shared with all
+     * clients of the same URL.
+     */
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return breaker;
+    }
+    
+    /**
+     * Returns how often a read call is tried before a network error is
+     * given up on. Defaults to {@link #DEFAULT_MAX_ATTEMPTS}.
+     */
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+    
+    /**
+     * Sets how often a read call is tried before a network error is given
+     * up on. Other calls are always sent once.
+     */
+    public void setMaxAttempts( int maxAttempts )
+    {
+        this.maxAttempts = maxAttempts;
+    }
+    
     /**
      * Returns, whether a method declared by the {@link Object Object class} is
      * performed by the local object, rather than by the server. Defaults to
@@ -109,45 +176,175 @@ public class TrackerDynamicProxy
     /**
      * Creates an object, which is implementing the given interface. The objects
      * methods are internally calling an XML-RPC server by using the factories
-     * client.
+     * client. Proxies are cached, so asking twice for the same interface
+     * returns the same object.
      */
     public Object newInstance( ClassLoader classLoader, final Class<?> clazz )
     {
-        return Proxy.newProxyInstance( classLoader, new Class[] { clazz },
-                new InvocationHandler() {
-                    public Object invoke( Object proxy, Method method,
-                            Object[] args ) throws Throwable
-                    {
-                        if ( isObjectMethodLocal()
-                                && method.getDeclaringClass().equals(
-                                        Object.class ) ) { return method.invoke( proxy, args ); }
-                    
-                        String _classname = clazz.getName().replaceFirst(clazz.getPackage().getName()+".", "").toLowerCase();
-                        
-                        _classname = _classname.replace("$", "."); //dirty hack TODO check
-                        
-                        String methodName = _classname
-                                + "." + method.getName();
-                        
-                        Object result = null;
-                        
-                        String id = "";
-                        
-                        JSONRPC2Request request = new JSONRPC2Request(methodName, Arrays.asList(args), id);
-                        client.disableStrictParsing(true);
-                        
-                        try{
-                        	JSONRPC2Response response = client.send(request);
-                            result = response.getResult();
-                            
-                            if(response.getError() != null){
-                            	throw new TracException(response.getError().getMessage());
-                            }
-                        }catch(JSONRPC2SessionException e){
-                        	e.printStackTrace();
-                        }
-                        return result;
-                    }
-                } );
+        synchronized ( proxies )
+        {
+            Object proxy = proxies.get( clazz );
+            if ( proxy == null )
+            {
+                proxy = Proxy.newProxyInstance( classLoader, new Class[] { clazz },
+                        new RpcInvocationHandler( clazz ) );
+                proxies.put( clazz, proxy );
+            }
+            return proxy;
+        }
+    }
+    
+    /**
+     * Sends every call on a proxy as a JSON-RPC request. The RPC method names,
+     * e.g. "ticket.component.getAll" for {@link Ticket.Component#getAll()},
+     * are resolved once when the proxy is created.
+     */
+    private class RpcInvocationHandler implements InvocationHandler
+    {
+        private final String prefix;
+        private final Map<Method, String> methodNames = new HashMap<Method, String>();
+        
+        RpcInvocationHandler( Class<?> clazz )
+        {
+            String _classname = clazz.getName().substring( clazz.getPackage().getName().length() + 1 ).toLowerCase();
+            
+            _classname = _classname.replace("$", "."); //dirty hack TODO check
+            
+            this.prefix = _classname + ".";
+            for ( Method method : clazz.getMethods() )
+            {
+                methodNames.put( method, prefix + method.getName() );
+            }
+        }
+        
+        public Object invoke( Object proxy, Method method,
+                Object[] args ) throws Throwable
+        {
+            if ( isObjectMethodLocal()
+                    && method.getDeclaringClass().equals(
+                            Object.class ) ) { return method.invoke( proxy, args ); }
+            
+            String methodName = methodNames.get( method );
+            if ( methodName == null )
+            {
+                methodName = prefix + method.getName();
+            }
+            
+            String id = "";
+            
+            List<Object> params = ( args == null ) ? Collections.emptyList() : Arrays.asList( args );
+            JSONRPC2Request request = new JSONRPC2Request(methodName, params, id);
+            
+            JSONRPC2Response response = send( request, isRead( methodName, params ) ? maxAttempts : 1 );
+            if(response.getError() != null){
+            	RPCStatistics statistics = client.getStatistics();
+            	if(statistics != null){
+            		statistics.recordErrorResponse(methodName);
+            	}
+            	throw new TracException(methodName + ": " + response.getError().getMessage());
+            }
+            return response.getResult();
+        }
+    }
+    
+    /**
+     * Sends the request through the circuit breaker, trying up to the given
+     * number of times while it fails with network errors. Retries and
+     * refused calls are counted in the session's statistics.
+     * 
+     * @throws TracException
+     *             if the circuit is open, the last attempt failed or the
+     *             response was invalid
+     */
+    private JSONRPC2Response send( JSONRPC2Request request, int attempts ) throws TracException
+    {
+        RPCStatistics statistics = client.getStatistics();
+        for ( int attempt = 1; ; attempt++ )
+        {
+            if ( !breaker.allowRequest() )
+            {
+                if ( statistics != null )
+                {
+                    statistics.recordRejected( request.getMethod() );
+                }
+                throw new TracException( "Not calling " + request.getMethod() + ", "
+                        + client.getURL() + " is unreachable" );
+            }
+            try
+            {
+                JSONRPC2Response response = client.send( request );
+                breaker.recordSuccess();
+                return response;
+            }
+            catch ( JSONRPC2SessionException e )
+            {
+                if ( e.getCauseType() != JSONRPC2SessionException.NETWORK_EXCEPTION )
+                {
+                    // The server answered, just not in a way we understand
+                    breaker.recordSuccess();
+                    throw new TracException( request.getMethod() + ": " + e.getMessage(), e );
+                }
+                breaker.recordFailure();
+                if ( attempt >= attempts )
+                {
+                    throw new TracException( request.getMethod() + ": " + e.getMessage(), e );
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                breaker.recordSuccess();
+                throw e;
+            }
+            
+            try
+            {
+                Thread.sleep( retryDelay( attempt ) );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new TracException( request.getMethod() + " interrupted", e );
+            }
+            if ( statistics != null )
+            {
+                statistics.recordRetry( request.getMethod() );
+            }
+        }
+    }
+    
+    /**
+     * Returns the delay before the attempt after the given one: half of the
+     * exponential delay plus a random part of up to the other half, so
+     * clients failing together don't retry together.
+     */
+    private static long retryDelay( int attempt )
+    {
+        long delay = Math.min( MAX_RETRY_DELAY, RETRY_DELAY << ( attempt - 1 ) );
+        return delay / 2 + (long) ( Math.random() * ( delay / 2 ) );
+    }
+    
+    /**
+     * Returns whether the call only reads. A system.multicall does if all
+     * calls it carries do.
+     */
+    private static boolean isRead( String methodName, List<Object> params )
+    {
+        if ( "system.multicall".equals( methodName ) )
+        {
+            if ( params.size() != 1 || !( params.get( 0 ) instanceof List<?> ) )
+            {
+                return false;
+            }
+            for ( Object signature : (List<?>) params.get( 0 ) )
+            {
+                if ( !( signature instanceof Map<?, ?> )
+                        || !isRead( String.valueOf( ( (Map<?, ?>) signature ).get( "method" ) ), Collections.emptyList() ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return methodName.endsWith( ".getAll" ) || READ_METHODS.contains( methodName );
     }
 }
@@ -5,4 +5,11 @@ public class TypeImpl extends TicketPropertyImpl {
 	public TypeImpl(String name) {
 		super(name);
 	}
+
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static TypeImpl valueOf(String name) {
+		return intern(TypeImpl.class, name);
+	}
 }
@@ -5,4 +5,11 @@ public class VersionImpl extends TicketPropertyImpl {
 	public VersionImpl(String name) {
 		super(name);
 	}
+
+	/**
+	 * Returns the shared instance for the given name, or null if it is null.
+	 */
+	public static VersionImpl valueOf(String name) {
+		return intern(VersionImpl.class, name);
+	}
 }
@@ -0,0 +1,123 @@
+package com.taveiranet.slidescreen.trac;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.lustin.trac.xmlprc2.PriorityRanks;
+import org.lustin.trac.xmlprc2.Trac;
+import org.lustin.trac.xmlprc2.mock.MockTracDataset;
+import org.lustin.trac.xmlprc2.mock.MockTracServer;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Runs {@link TicketUpdateQueue} against a {@link MockTracServer}: edits are
+ * coalesced while waiting, sent by {@link TicketUpdateQueue#flush}, and kept
+ * as conflicts when the ticket changed on the server in between.
+ */
+public class TicketUpdateQueueTest extends AndroidTestCase {
+
+	private static final long BASE_TIME = 1300000000000L;
+
+	private MockTracDataset dataset;
+	private MockTracServer server;
+	private Trac trac;
+	private TicketStore store;
+	private TicketUpdateQueue queue;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dataset = new MockTracDataset(20, BASE_TIME, 42);
+		server = new MockTracServer(dataset, 42);
+		server.start();
+		trac = new Trac(getContext(), server.getUrl() + "/rpc", "user", "secret");
+		getContext().deleteDatabase(TicketStore.getDatabaseName(trac.getServerKey()));
+		store = new TicketStore(getContext(), trac.getServerKey());
+		store.replaceAll(trac.getTickets(Arrays.asList(1L, 2L, 3L)));
+		queue = new TicketUpdateQueue(store);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		store.close();
+		getContext().deleteDatabase(TicketStore.getDatabaseName(trac.getServerKey()));
+		server.stop();
+		super.tearDown();
+	}
+
+	public void testEditsOfATicketAreCoalesced() throws Exception {
+		queue.enqueueUpdate(1, "first", attributes("keywords", "one"), null, PriorityRanks.DEFAULT);
+		queue.enqueueUpdate(1, "second", attributes("owner", "someone"), null, PriorityRanks.DEFAULT);
+		queue.enqueueUpdate(2, null, attributes("keywords", "two"), null, PriorityRanks.DEFAULT);
+		assertEquals(2, queue.count(TicketUpdateQueue.STATE_PENDING));
+
+		long requests = server.getRequestCount();
+		assertTrue(queue.flush(trac));
+		assertEquals(0, queue.count(TicketUpdateQueue.STATE_PENDING));
+		assertFalse(queue.flush(trac));
+
+		assertEquals("one", trac.getTicket(1).getKeywords());
+		assertEquals("someone", trac.getTicket(1).getOwner());
+		assertEquals("two", trac.getTicket(2).getKeywords());
+		// Both updates went in one multicall, then the two ticket.get above
+		assertEquals(requests + 3, server.getRequestCount());
+		assertEquals(dataset.getChangeToken(1), store.getChangeToken(1));
+	}
+
+	public void testEditOfAChangedTicketIsAConflict() throws Exception {
+		dataset.update(3, attributes("keywords", "theirs"), BASE_TIME + 60000);
+		queue.enqueueUpdate(3, "mine", attributes("keywords", "mine"), null, PriorityRanks.DEFAULT);
+		queue.enqueueUpdate(2, null, attributes("keywords", "fine"), null, PriorityRanks.DEFAULT);
+
+		assertTrue(queue.flush(trac));
+		assertEquals(1, queue.count(TicketUpdateQueue.STATE_CONFLICT));
+		assertEquals(0, queue.count(TicketUpdateQueue.STATE_PENDING));
+		assertEquals("theirs", trac.getTicket(3).getKeywords());
+		assertEquals("fine", trac.getTicket(2).getKeywords());
+		// Dropped so the next sync fetches the server's version
+		assertNull(store.getChangeToken(3));
+
+		// Once synced again, the edit can be sent on top of the server's
+		store.update(Collections.singletonList(trac.getTicket(3)), Collections.<Long> emptyList());
+		assertEquals(1, queue.retryConflicts());
+		assertTrue(queue.flush(trac));
+		assertEquals(0, queue.count(TicketUpdateQueue.STATE_CONFLICT));
+		assertEquals("mine", trac.getTicket(3).getKeywords());
+	}
+
+	public void testCreatedTicketIsSent() throws Exception {
+		int size = dataset.size();
+		queue.enqueueCreate(attributes("summary", "Offline ticket"), null);
+		assertEquals(1, queue.count(TicketUpdateQueue.STATE_PENDING));
+
+		assertTrue(queue.flush(trac));
+		assertEquals(0, queue.count(TicketUpdateQueue.STATE_PENDING));
+		assertEquals(size + 1, dataset.size());
+		assertEquals("Offline ticket", trac.getTicket(size + 1).getSummary());
+	}
+
+	public void testUnreachableServerKeepsEdits() throws Exception {
+		queue.enqueueUpdate(1, null, attributes("keywords", "later"), null, PriorityRanks.DEFAULT);
+		server.stop();
+		try {
+			queue.flush(trac);
+			fail("Flushed to a stopped server");
+		} catch (Exception e) {
+			// Expected
+		}
+		assertEquals(1, queue.count(TicketUpdateQueue.STATE_PENDING));
+
+		// Not in flight anymore: a new edit merges into the waiting one
+		queue.enqueueUpdate(1, null, attributes("owner", "someone"), null, PriorityRanks.DEFAULT);
+		assertEquals(1, queue.count(TicketUpdateQueue.STATE_PENDING));
+	}
+
+	private static Map<String, String> attributes(String name, String value) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put(name, value);
+		return attributes;
+	}
+}
@@ -0,0 +1,295 @@
+package org.lustin.trac.xmlprc2.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.lustin.trac.xmlprc2.TracDateTime;
+
+/**
+ * Synthetic tickets for {@link MockTracServer}, generated from a seed so the
+ * same arguments always give the same dataset. Tickets look like those of a
+ * stock Trac: the default enumerations, a handful of components, milestones
+ * and owners, and change times spread over the year before the base time.
+ */
+public class MockTracDataset {
+
+	private static final String[] STATUSES = {"new", "assigned", "accepted", "reopened", "closed"};
+	private static final String[] TYPES = {"defect", "enhancement", "task"};
+	private static final String[] PRIORITIES = {"blocker", "critical", "major", "minor", "trivial"};
+	private static final String[] SEVERITIES = {"blocker", "critical", "major", "normal", "minor", "trivial"};
+	private static final String[] RESOLUTIONS = {"fixed", "invalid", "wontfix", "duplicate", "worksforme"};
+	private static final String[] COMPONENTS = {"core", "ui", "sync", "docs", "build"};
+	private static final String[] MILESTONES = {"milestone1", "milestone2", "milestone3", "milestone4"};
+	private static final String[] VERSIONS = {"1.0", "1.1", "2.0"};
+	private static final String[] OWNERS = {"alice", "bob", "carol", "dave", "somebody"};
+	private static final String[] WORDS = {"crash", "sync", "slow", "login", "widget", "priority", "refresh",
+		"server", "timeout", "layout", "preferences", "battery", "query", "ticket", "update"};
+
+	/**
+	 * The values of each ticket.*.getAll enumeration, by the name between
+	 * "ticket." and ".getAll".
+	 */
+	private static final Map<String, List<String>> ENUMS = new HashMap<String, List<String>>();
+	static {
+		ENUMS.put("status", Arrays.asList(STATUSES));
+		ENUMS.put("type", Arrays.asList(TYPES));
+		ENUMS.put("priority", Arrays.asList(PRIORITIES));
+		ENUMS.put("severity", Arrays.asList(SEVERITIES));
+		ENUMS.put("resolution", Arrays.asList(RESOLUTIONS));
+		ENUMS.put("component", Arrays.asList(COMPONENTS));
+		ENUMS.put("milestone", Arrays.asList(MILESTONES));
+		ENUMS.put("version", Arrays.asList(VERSIONS));
+	}
+
+	private static final long YEAR = 365L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * A ticket's attributes, without the times.
+	 */
+	private static class MockTicket {
+		final long time;
+		long changeTime;
+		final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+		MockTicket(long time, long changeTime) {
+			this.time = time;
+			this.changeTime = changeTime;
+		}
+	}
+
+	private final TreeMap<Long, MockTicket> tickets = new TreeMap<Long, MockTicket>();
+	private final Random random;
+
+	/**
+	 * @param ticketCount the number of tickets, with ids 1 to ticketCount
+	 * @param baseTime    the time of the latest change, in epoch millis
+	 * @param seed        the seed the tickets are generated from
+	 */
+	public MockTracDataset(int ticketCount, long baseTime, long seed) {
+		random = new Random(seed);
+		for(long id = 1; id <= ticketCount; id++){
+			long changeTime = baseTime - (long) (random.nextDouble() * YEAR);
+			long time = changeTime - (long) (random.nextDouble() * YEAR);
+			// Trac datetimes have second precision
+			MockTicket ticket = new MockTicket(time / 1000 * 1000, changeTime / 1000 * 1000);
+			Map<String, String> attributes = ticket.attributes;
+			attributes.put("summary", words(3 + random.nextInt(6)));
+			attributes.put("description", words(10 + random.nextInt(60)));
+			attributes.put("reporter", pick(OWNERS));
+			attributes.put("owner", pick(OWNERS));
+			attributes.put("cc", "");
+			attributes.put("keywords", random.nextInt(4) == 0 ? pick(WORDS) : "");
+			attributes.put("type", pick(TYPES));
+			attributes.put("priority", pick(PRIORITIES));
+			attributes.put("component", pick(COMPONENTS));
+			attributes.put("milestone", pick(MILESTONES));
+			attributes.put("version", pick(VERSIONS));
+			String status = pick(STATUSES);
+			attributes.put("status", status);
+			attributes.put("resolution", "closed".equals(status) ? pick(RESOLUTIONS) : "");
+			tickets.put(id, ticket);
+		}
+	}
+
+	private String pick(String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private String words(int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++){
+			if(i > 0){
+				sb.append(' ');
+			}
+			sb.append(pick(WORDS));
+		}
+		return sb.toString();
+	}
+
+	public synchronized int size() {
+		return tickets.size();
+	}
+
+	/**
+	 * Returns the values of a ticket enumeration, e.g. "priority", or null
+	 * if there is no such enumeration.
+	 */
+	public List<String> getEnum(String name) {
+		List<String> values = ENUMS.get(name);
+		return values == null ? null : Collections.unmodifiableList(values);
+	}
+
+	/**
+	 * Returns the ids of the tickets matching a Trac query string. Supports
+	 * "field=a|b", "field!=a|b", "field=~text" and "max" (100 by default,
+	 * 0 for no limit); other clauses such as "order" are ignored.
+	 */
+	public synchronized List<Long> query(String qstr) {
+		int max = 100;
+		List<String[]> clauses = new ArrayList<String[]>();
+		for(String clause: qstr.split("&")){
+			int eq = clause.indexOf('=');
+			if(eq <= 0){
+				continue;
+			}
+			String field = clause.substring(0, eq);
+			String value = clause.substring(eq + 1);
+			if("max".equals(field)){
+				max = Integer.parseInt(value);
+			}else{
+				clauses.add(new String[] { field, value });
+			}
+		}
+
+		List<Long> ids = new ArrayList<Long>();
+		for(Map.Entry<Long, MockTicket> entry: tickets.entrySet()){
+			if(max > 0 && ids.size() >= max){
+				break;
+			}
+			if(matches(entry.getValue(), clauses)){
+				ids.add(entry.getKey());
+			}
+		}
+		return ids;
+	}
+
+	private static boolean matches(MockTicket ticket, List<String[]> clauses) {
+		for(String[] clause: clauses){
+			String field = clause[0];
+			String value = clause[1];
+			boolean negate = field.endsWith("!");
+			if(negate){
+				field = field.substring(0, field.length() - 1);
+			}
+			String actual = ticket.attributes.get(field);
+			if(actual == null){
+				actual = "";
+			}
+			boolean match;
+			if(value.startsWith("~")){
+				match = actual.contains(value.substring(1));
+			}else{
+				match = Arrays.asList(value.split("\\|")).contains(actual);
+			}
+			if(match == negate){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a ticket the way ticket.get does: [id, time, changetime,
+	 * attributes], or null if there is no such ticket. The attributes carry
+	 * the times as well, and "_ts" as the change time in microseconds.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized JSONArray get(long id) {
+		MockTicket ticket = tickets.get(id);
+		if(ticket == null){
+			return null;
+		}
+		JSONObject attributes = new JSONObject();
+		attributes.putAll(ticket.attributes);
+		attributes.put("time", TracDateTime.toJSON(ticket.time));
+		attributes.put("changetime", TracDateTime.toJSON(ticket.changeTime));
+		attributes.put("_ts", String.valueOf(ticket.changeTime * 1000));
+
+		JSONArray result = new JSONArray();
+		result.add(id);
+		result.add(TracDateTime.toJSON(ticket.time));
+		result.add(TracDateTime.toJSON(ticket.changeTime));
+		result.add(attributes);
+		return result;
+	}
+
+	/**
+	 * Returns the ids of the tickets changed since the given time, in epoch
+	 * millis.
+	 */
+	public synchronized List<Long> getRecentChanges(long since) {
+		List<Long> ids = new ArrayList<Long>();
+		for(Map.Entry<Long, MockTicket> entry: tickets.entrySet()){
+			if(entry.getValue().changeTime >= since){
+				ids.add(entry.getKey());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Searches summaries and descriptions the way search.performSearch
+	 * reports ticket results: [href, title, date, author, excerpt].
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized JSONArray search(String terms) {
+		JSONArray results = new JSONArray();
+		for(Map.Entry<Long, MockTicket> entry: tickets.entrySet()){
+			MockTicket ticket = entry.getValue();
+			String summary = ticket.attributes.get("summary");
+			String description = ticket.attributes.get("description");
+			if(summary.contains(terms) || description.contains(terms)){
+				JSONArray result = new JSONArray();
+				result.add("/ticket/" + entry.getKey());
+				result.add("#" + entry.getKey() + ": " + summary);
+				result.add(TracDateTime.toJSON(ticket.changeTime));
+				result.add(ticket.attributes.get("reporter"));
+				result.add(description);
+				results.add(result);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Changes a ticket's attributes as a ticket.update by someone else would,
+	 * moving its change time to the given time.
+	 *
+	 * @return false if there is no such ticket
+	 */
+	public synchronized boolean update(long id, Map<String, String> attributes, long time) {
+		MockTicket ticket = tickets.get(id);
+		if(ticket == null){
+			return false;
+		}
+		ticket.attributes.putAll(attributes);
+		ticket.changeTime = Math.max(ticket.changeTime + 1000, time / 1000 * 1000);
+		return true;
+	}
+
+	/**
+	 * Returns the "_ts" of a ticket as ticket.get reports it, or null if
+	 * there is no such ticket.
+	 */
+	public synchronized String getChangeToken(long id) {
+		MockTicket ticket = tickets.get(id);
+		return ticket == null ? null : String.valueOf(ticket.changeTime * 1000);
+	}
+
+	/**
+	 * Adds a ticket as ticket.create does, created at the given time.
+	 *
+	 * @return the id of the new ticket
+	 */
+	public synchronized long create(Map<String, String> attributes, long time) {
+		long id = tickets.isEmpty() ? 1 : tickets.lastKey() + 1;
+		MockTicket ticket = new MockTicket(time / 1000 * 1000, time / 1000 * 1000);
+		for(String field: new String[] {"summary", "description", "reporter", "owner", "cc", "keywords",
+				"type", "priority", "component", "milestone", "version", "resolution"}){
+			ticket.attributes.put(field, "");
+		}
+		ticket.attributes.put("status", "new");
+		ticket.attributes.putAll(attributes);
+		tickets.put(id, ticket);
+		return id;
+	}
+}
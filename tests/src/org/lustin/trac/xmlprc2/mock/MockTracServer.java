@@ -0,0 +1,499 @@
+package org.lustin.trac.xmlprc2.mock;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.json.simple.JSONArray;
+import org.lustin.trac.xmlprc2.TracDateTime;
+
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Error;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2ParseException;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Request;
+import com.thetransactioncompany.jsonrpc2.JSONRPC2Response;
+import com.thetransactioncompany.jsonrpc2.util.NamedParamsRetriever;
+import com.thetransactioncompany.jsonrpc2.util.PositionalParamsRetriever;
+
+/**
+ * A Trac JSON-RPC server running in the same process, serving a
+ * {@link MockTracDataset} over HTTP on the loopback interface. Point a
+ * {@link org.lustin.trac.xmlprc2.Trac} at {@link #getUrl()} + "/rpc" to run
+ * a refresh end to end without a real Trac.
+ *
+ * <p>Implements ticket.query, ticket.get, ticket.getRecentChanges,
+ * ticket.update, ticket.create, the ticket.*.getAll enumerations,
+ * search.performSearch, system.getAPIVersion and system.multicall. Like
+ * Trac, ticket.update refuses a "_ts" attribute that is not the ticket's
+ * current one. Parameters may be positional,
+ * as Trac sends them, or named.
+ *
+ * <p>Slow and unreliable servers can be simulated with an added latency, a
+ * response bandwidth limit and rates of dropped connections, HTTP errors
+ * and JSON-RPC errors. The faults are drawn from a seeded generator, so a
+ * run with the same requests in the same order sees the same faults.
+ * Credentials are not checked.
+ */
+public class MockTracServer {
+
+	/**
+	 * The JSON-RPC error code Trac uses for missing resources.
+	 */
+	public static final int RESOURCE_NOT_FOUND = 404;
+
+	private final MockTracDataset dataset;
+	private final Random faults;
+
+	private volatile long latency = 0;
+	private volatile long latencyJitter = 0;
+	private volatile long bytesPerSecond = 0;
+	private volatile double dropRate = 0;
+	private volatile double httpErrorRate = 0;
+	private volatile double rpcErrorRate = 0;
+
+	private ServerSocket serverSocket = null;
+	private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+	private final AtomicLong requestCount = new AtomicLong();
+
+	/**
+	 * @param dataset the tickets to serve
+	 * @param seed    the seed the injected faults are drawn from
+	 */
+	public MockTracServer(MockTracDataset dataset, long seed) {
+		this.dataset = dataset;
+		this.faults = new Random(seed);
+	}
+
+	public MockTracDataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * Delays every response by the given time plus a random part of up to
+	 * the jitter, in milliseconds.
+	 */
+	public void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.latencyJitter = jitter;
+	}
+
+	/**
+	 * Limits the rate responses are written at, 0 for no limit.
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the share of requests, between 0 and 1, that are answered by
+	 * closing the connection, with an HTTP 503 error and with a JSON-RPC
+	 * internal error. The client sees the first two as network errors.
+	 */
+	public void setErrorRates(double dropRate, double httpErrorRate, double rpcErrorRate) {
+		this.dropRate = dropRate;
+		this.httpErrorRate = httpErrorRate;
+		this.rpcErrorRate = rpcErrorRate;
+	}
+
+	/**
+	 * Returns the number of requests received so far.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Starts listening on a free loopback port.
+	 */
+	public synchronized void start() throws IOException {
+		if(serverSocket != null){
+			return;
+		}
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final ServerSocket listening = serverSocket;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while(!listening.isClosed()){
+					try {
+						final Socket socket = listening.accept();
+						// Head and body are written separately
+						socket.setTcpNoDelay(true);
+						connections.add(socket);
+						Thread handler = new Thread(new Runnable() {
+							public void run() {
+								serve(socket);
+							}
+						}, "MockTrac-" + socket.getPort());
+						handler.setDaemon(true);
+						handler.start();
+					} catch (IOException e) {
+						// Closed by stop()
+					}
+				}
+			}
+		}, "MockTrac");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Returns the project URL, e.g. "http://127.0.0.1:34567/trac". The
+	 * server answers JSON-RPC on any path below it.
+	 */
+	public synchronized String getUrl() {
+		if(serverSocket == null){
+			throw new IllegalStateException("Not started");
+		}
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/trac";
+	}
+
+	/**
+	 * Stops listening and closes all open connections.
+	 */
+	public synchronized void stop() {
+		if(serverSocket == null){
+			return;
+		}
+		close(serverSocket);
+		serverSocket = null;
+		synchronized (connections) {
+			for(Socket socket: connections){
+				close(socket);
+			}
+			connections.clear();
+		}
+	}
+
+	private static void close(ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Answers HTTP requests on a connection until the client closes it.
+	 */
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while(true){
+				String requestLine = readLine(in);
+				if(requestLine == null){
+					break;
+				}
+				int contentLength = 0;
+				boolean gzip = false;
+				boolean keepAlive = !requestLine.endsWith("HTTP/1.0");
+				String header;
+				while((header = readLine(in)) != null && header.length() > 0){
+					int colon = header.indexOf(':');
+					if(colon < 0){
+						continue;
+					}
+					String name = header.substring(0, colon).trim();
+					String value = header.substring(colon + 1).trim();
+					if("Content-Length".equalsIgnoreCase(name)){
+						contentLength = Integer.parseInt(value);
+					}else if("Content-Encoding".equalsIgnoreCase(name)){
+						gzip = "gzip".equalsIgnoreCase(value);
+					}else if("Connection".equalsIgnoreCase(name)){
+						keepAlive = !"close".equalsIgnoreCase(value);
+					}
+				}
+				byte[] body = new byte[contentLength];
+				int read = 0;
+				while(read < contentLength){
+					int n = in.read(body, read, contentLength - read);
+					if(n < 0){
+						return;
+					}
+					read += n;
+				}
+				requestCount.incrementAndGet();
+
+				if(!handle(body, gzip, keepAlive, out) || !keepAlive){
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Client went away
+		} finally {
+			connections.remove(socket);
+			close(socket);
+		}
+	}
+
+	/**
+	 * Answers one HTTP request, applying the injected faults.
+	 *
+	 * @return false if the connection must be closed
+	 */
+	private boolean handle(byte[] body, boolean gzip, boolean keepAlive, OutputStream out) throws IOException {
+		double fault;
+		long delay;
+		synchronized (faults) {
+			fault = faults.nextDouble();
+			delay = latency + (latencyJitter > 0 ? (long) (faults.nextDouble() * latencyJitter) : 0);
+		}
+		if(delay > 0){
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		if(fault < dropRate){
+			return false;
+		}
+		if(fault < dropRate + httpErrorRate){
+			write(out, 503, "text/plain", "Service Unavailable".getBytes("UTF-8"), keepAlive);
+			return true;
+		}
+
+		JSONRPC2Response response;
+		try {
+			String json = new String(gzip ? gunzip(body) : body, "UTF-8");
+			JSONRPC2Request request = JSONRPC2Request.parse(json, false, true);
+			if(fault < dropRate + httpErrorRate + rpcErrorRate){
+				response = new JSONRPC2Response(JSONRPC2Error.INTERNAL_ERROR, request.getID());
+			}else{
+				response = dispatch(request);
+			}
+		} catch (JSONRPC2ParseException e) {
+			response = new JSONRPC2Response(JSONRPC2Error.PARSE_ERROR, null);
+		}
+		write(out, 200, "application/json", response.toString().getBytes("UTF-8"), keepAlive);
+		return true;
+	}
+
+	private static byte[] gunzip(byte[] body) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+		byte[] buffer = new byte[4096];
+		int n;
+		while((n = in.read(buffer)) > 0){
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes an HTTP response, at no more than the bandwidth limit.
+	 */
+	private void write(OutputStream out, int status, String contentType, byte[] body, boolean keepAlive) throws IOException {
+		String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+				+ "Content-Type: " + contentType + "; charset=utf-8\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ (keepAlive ? "" : "Connection: close\r\n")
+				+ "\r\n";
+		out.write(head.getBytes("US-ASCII"));
+
+		long limit = bytesPerSecond;
+		if(limit <= 0){
+			out.write(body);
+			out.flush();
+			return;
+		}
+		// Write in chunks of a twentieth of a second's worth
+		int chunk = (int) Math.max(1, limit / 20);
+		long start = System.currentTimeMillis();
+		for(int offset = 0; offset < body.length; offset += chunk){
+			int length = Math.min(chunk, body.length - offset);
+			out.write(body, offset, length);
+			out.flush();
+			long due = start + (offset + length) * 1000L / limit;
+			long wait = due - System.currentTimeMillis();
+			if(wait > 0){
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					throw new SocketException("Interrupted");
+				}
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while((c = in.read()) >= 0){
+			if(c == '\n'){
+				int length = sb.length();
+				if(length > 0 && sb.charAt(length - 1) == '\r'){
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			sb.append((char) c);
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+
+	/**
+	 * Answers a request, turning failures into JSON-RPC error responses.
+	 */
+	private JSONRPC2Response dispatch(JSONRPC2Request request) {
+		try {
+			return new JSONRPC2Response(call(request.getMethod(), request.getParams()), request.getID());
+		} catch (JSONRPC2Error e) {
+			return new JSONRPC2Response(e, request.getID());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object call(String method, Object params) throws JSONRPC2Error {
+		Params p = new Params(params);
+		if(method.startsWith("ticket.") && method.endsWith(".getAll")){
+			List<String> values = dataset.getEnum(method.substring("ticket.".length(), method.length() - ".getAll".length()));
+			if(values == null){
+				throw JSONRPC2Error.METHOD_NOT_FOUND;
+			}
+			JSONArray result = new JSONArray();
+			result.addAll(values);
+			return result;
+		}else if("ticket.query".equals(method)){
+			return toJSONArray(dataset.query(p.getOptString(0, "qstr", "status!=closed")));
+		}else if("ticket.get".equals(method)){
+			long id = p.getLong(0, "id");
+			JSONArray ticket = dataset.get(id);
+			if(ticket == null){
+				throw new JSONRPC2Error(RESOURCE_NOT_FOUND, "Ticket " + id + " does not exist.");
+			}
+			return ticket;
+		}else if("ticket.getRecentChanges".equals(method)){
+			long since = TracDateTime.parse(p.getMap(0, "since"));
+			if(since == TracDateTime.INVALID){
+				throw JSONRPC2Error.INVALID_PARAMS;
+			}
+			return toJSONArray(dataset.getRecentChanges(since));
+		}else if("ticket.update".equals(method)){
+			long id = p.getLong(0, "id");
+			Map<String, String> attributes = toAttributes(p.getMap(2, "attributes"));
+			String changeToken = attributes.remove("_ts");
+			synchronized (dataset) {
+				String current = dataset.getChangeToken(id);
+				if(current == null){
+					throw new JSONRPC2Error(RESOURCE_NOT_FOUND, "Ticket " + id + " does not exist.");
+				}
+				if(changeToken != null && !changeToken.equals(current)){
+					throw new JSONRPC2Error(JSONRPC2Error.INTERNAL_ERROR.getCode(), "Ticket has been updated since last get().");
+				}
+				dataset.update(id, attributes, System.currentTimeMillis());
+				return dataset.get(id);
+			}
+		}else if("ticket.create".equals(method)){
+			Map<String, String> attributes = toAttributes(p.getMap(2, "attributes"));
+			attributes.put("summary", p.getString(0, "summary"));
+			attributes.put("description", p.getString(1, "description"));
+			return dataset.create(attributes, System.currentTimeMillis());
+		}else if("search.performSearch".equals(method)){
+			return dataset.search(p.getString(0, "query"));
+		}else if("system.getAPIVersion".equals(method)){
+			JSONArray version = new JSONArray();
+			version.add(1L);
+			version.add(1L);
+			version.add(2L);
+			return version;
+		}else if("system.multicall".equals(method)){
+			JSONArray results = new JSONArray();
+			for(Object signature: p.getList(0, "signatures")){
+				if(!(signature instanceof Map)){
+					throw JSONRPC2Error.INVALID_PARAMS;
+				}
+				Map<String, Object> call = (Map<String, Object>) signature;
+				Object id = call.containsKey("id") ? call.get("id") : null;
+				JSONRPC2Response response;
+				try {
+					response = new JSONRPC2Response(call(String.valueOf(call.get("method")), call.get("params")), id);
+				} catch (JSONRPC2Error e) {
+					response = new JSONRPC2Response(e, id);
+				}
+				results.add(response.toJSON());
+			}
+			return results;
+		}
+		throw JSONRPC2Error.METHOD_NOT_FOUND;
+	}
+
+	private static Map<String, String> toAttributes(Map<String, Object> values) {
+		Map<String, String> attributes = new LinkedHashMap<String, String>();
+		for(Map.Entry<String, Object> value: values.entrySet()){
+			attributes.put(value.getKey(), value.getValue() == null ? "" : value.getValue().toString());
+		}
+		return attributes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONArray toJSONArray(List<Long> ids) {
+		JSONArray array = new JSONArray();
+		array.addAll(ids);
+		return array;
+	}
+
+	/**
+	 * Reads a parameter by position or by name, whichever way the request
+	 * passed them.
+	 */
+	@SuppressWarnings("unchecked")
+	private static class Params {
+		private final PositionalParamsRetriever positional;
+		private final NamedParamsRetriever named;
+
+		Params(Object params) {
+			if(params instanceof Map){
+				positional = null;
+				named = new NamedParamsRetriever((Map<String, Object>) params);
+			}else{
+				positional = new PositionalParamsRetriever(params instanceof List ? (List<Object>) params : new ArrayList<Object>());
+				named = null;
+			}
+		}
+
+		String getString(int position, String name) throws JSONRPC2Error {
+			return positional != null ? positional.getString(position) : named.getString(name);
+		}
+
+		String getOptString(int position, String name, String defaultValue) throws JSONRPC2Error {
+			return positional != null ? positional.getOptString(position, defaultValue) : named.getOptString(name, defaultValue);
+		}
+
+		long getLong(int position, String name) throws JSONRPC2Error {
+			return positional != null ? positional.getLong(position) : named.getLong(name);
+		}
+
+		Map<String, Object> getMap(int position, String name) throws JSONRPC2Error {
+			return positional != null ? positional.getMap(position) : named.getMap(name);
+		}
+
+		List<Object> getList(int position, String name) throws JSONRPC2Error {
+			return positional != null ? positional.getList(position) : named.getList(name);
+		}
+	}
+}